@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.kingja.pokonyan;
+
+import android.annotation.Nullable;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Compact, typed, length-prefixed on-disk format for {@link SharedPreferencesImpl}.
+ *
+ * <p>Layout (all numbers big-endian):
+ * <pre>
+ *   int     magic          {@link #MAGIC}
+ *   int     version        {@link #VERSION}
+ *   long    generation     memory state generation that was written
+ *   int     key count
+ *   entries[key count]:
+ *     byte    type         one of the TYPE_* constants
+ *     string  key
+ *     value                depends on type
+ * </pre>
+ * A string is an int byte length followed by that many UTF-8 bytes; a length of -1 encodes
+ * {@code null}. A string set is an int member count followed by that many strings.
+ *
+ * <p>The magic never starts with {@code '<'}, so a file can always be told apart from the
+ * XML written by {@link com.android.internal.util.XmlUtils#writeMapXml}.
+ *
+ * @hide
+ */
+final class BinaryPrefsFormat {
+    /** "SPRF" */
+    static final int MAGIC = 0x53505246;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    static final byte TYPE_NULL = 0;
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_FLOAT = 4;
+    static final byte TYPE_BOOLEAN = 5;
+    static final byte TYPE_STRING_SET = 6;
+
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    private BinaryPrefsFormat() {
+    }
+
+    /**
+     * Check whether the stream starts with the binary magic. The stream is reset to where it
+     * was, so it must support {@link InputStream#mark}.
+     */
+    static boolean isBinary(InputStream in) throws IOException {
+        in.mark(4);
+        try {
+            int magic = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = in.read();
+                if (b < 0) {
+                    return false;
+                }
+                magic = (magic << 8) | b;
+            }
+            return magic == MAGIC;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Check whether the buffer starts with the binary magic at its current position. The
+     * position is not changed.
+     */
+    static boolean isBinary(ByteBuffer buf) {
+        return buf.remaining() >= 4 && buf.getInt(buf.position()) == MAGIC;
+    }
+
+    /**
+     * Read a whole binary preferences file of the given size from the stream.
+     */
+    static ByteBuffer readBuffer(InputStream in, long size) throws IOException {
+        if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+            throw new IOException("Bad preferences file size " + size);
+        }
+        final byte[] data = new byte[(int) size];
+        int read = 0;
+        while (read < data.length) {
+            int n = in.read(data, read, data.length - read);
+            if (n < 0) {
+                throw new EOFException("Preferences file truncated at " + read + " bytes");
+            }
+            read += n;
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Decode a binary preferences file held in {@code buf}, from its current position.
+     */
+    static PrefsMap readMap(ByteBuffer buf) throws IOException {
+        final int count = readHeader(buf);
+        final PrefsMap map = new PrefsMap(count);
+        for (int i = 0; i < count; i++) {
+            final byte type = buf.get();
+            final String key = readString(buf);
+            readValue(buf, type, key, map);
+        }
+        return map;
+    }
+
+    /**
+     * Like {@link #readMap(ByteBuffer)}, but only decodes keys and fixed-size values. Strings
+     * and string sets are mapped to a {@link LazyValue} that remembers where the value is in
+     * {@code buf} and decodes it the first time it is asked for. Primitives are decoded right
+     * away because a placeholder would take as much heap as the boxed value.
+     *
+     * <p>{@code buf} must not be modified afterwards; it is kept alive by the placeholders.
+     *
+     * @param cache if non-null, decoded values are accounted in and may be evicted by this
+     *              cache, otherwise they are kept once decoded
+     */
+    static PrefsMap readIndex(ByteBuffer buf, @Nullable PrefsValueCache cache)
+            throws IOException {
+        final int count = readHeader(buf);
+        final PrefsMap map = new PrefsMap(count);
+        for (int i = 0; i < count; i++) {
+            final byte type = buf.get();
+            final String key = readString(buf);
+            if (type == TYPE_STRING || type == TYPE_STRING_SET) {
+                final int offset = buf.position();
+                skipValue(buf, type);
+                map.putLazy(key, type, new LazyValue(buf, type, offset, buf.position() - offset,
+                        cache));
+            } else {
+                readValue(buf, type, key, map);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Validate the header and return the number of entries that follow it.
+     */
+    static int readHeader(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < HEADER_SIZE) {
+            throw new EOFException("Preferences header truncated");
+        }
+        final int magic = buf.getInt();
+        if (magic != MAGIC) {
+            throw new IOException("Bad magic 0x" + Integer.toHexString(magic));
+        }
+        final int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported preferences format version " + version);
+        }
+        buf.getLong(); // generation
+        final int count = buf.getInt();
+        if (count < 0) {
+            throw new IOException("Bad key count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Decode a value of the given type and store it in {@code map} without boxing.
+     */
+    private static void readValue(ByteBuffer buf, byte type, String key, PrefsMap map)
+            throws IOException {
+        switch (type) {
+            case TYPE_NULL:
+                map.putNull(key);
+                break;
+            case TYPE_STRING: {
+                final String value = readString(buf);
+                if (value != null) {
+                    map.putString(key, value);
+                } else {
+                    map.putNull(key);
+                }
+                break;
+            }
+            case TYPE_INT:
+                map.putInt(key, buf.getInt());
+                break;
+            case TYPE_LONG:
+                map.putLong(key, buf.getLong());
+                break;
+            case TYPE_FLOAT:
+                map.putFloat(key, buf.getFloat());
+                break;
+            case TYPE_BOOLEAN:
+                map.putBoolean(key, buf.get() != 0);
+                break;
+            case TYPE_STRING_SET:
+                map.putStringSet(key, readStringSet(buf));
+                break;
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    private static Set<String> readStringSet(ByteBuffer buf) throws IOException {
+        final int size = buf.getInt();
+        if (size < 0) {
+            throw new IOException("Bad string set size " + size);
+        }
+        // Every member takes at least 4 bytes, don't trust the size further than that
+        if (size > buf.remaining() / 4) {
+            throw new IOException("Bad string set size " + size);
+        }
+        final String[] values = new String[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = readString(buf);
+        }
+        return PrefsStringSet.wrap(values, size);
+    }
+
+    private static void skipValue(ByteBuffer buf, byte type) throws IOException {
+        if (type == TYPE_STRING) {
+            skipString(buf);
+        } else {
+            final int size = buf.getInt();
+            if (size < 0) {
+                throw new IOException("Bad string set size " + size);
+            }
+            for (int i = 0; i < size; i++) {
+                skipString(buf);
+            }
+        }
+    }
+
+    private static void skipString(ByteBuffer buf) throws IOException {
+        final int length = buf.getInt();
+        if (length == -1) {
+            return;
+        }
+        if (length < 0 || length > buf.remaining()) {
+            throw new IOException("Bad string length " + length);
+        }
+        buf.position(buf.position() + length);
+    }
+
+    static String readString(ByteBuffer buf) throws IOException {
+        final int length = buf.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buf.remaining()) {
+            throw new IOException("Bad string length " + length);
+        }
+        final String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), length,
+                    StandardCharsets.UTF_8);
+            buf.position(buf.position() + length);
+        } else {
+            final byte[] bytes = new byte[length];
+            buf.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    /**
+     * Write {@code map} to {@code out}. The stream is flushed but not closed so the caller can
+     * still sync it.
+     */
+    static void writeMap(PrefsMap map, long generation, OutputStream out)
+            throws IOException {
+        final DataOutputStream data = new DataOutputStream(
+                new BufferedOutputStream(out, WRITE_BUFFER_SIZE));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(generation);
+        data.writeInt(map.size());
+        for (int slot = 0; slot < map.capacity(); slot++) {
+            if (map.keyAt(slot) != null) {
+                writeEntry(data, map, slot);
+            }
+        }
+        data.flush();
+    }
+
+    private static void writeEntry(DataOutputStream out, PrefsMap map, int slot)
+            throws IOException {
+        final byte type = map.typeAt(slot);
+        out.writeByte(type);
+        writeString(out, map.keyAt(slot));
+        switch (type) {
+            case TYPE_NULL:
+                break;
+            case TYPE_INT:
+            case TYPE_FLOAT:
+                // A float is held as the bits Float.floatToIntBits() returns
+                out.writeInt((int) map.bitsAt(slot));
+                break;
+            case TYPE_LONG:
+                out.writeLong(map.bitsAt(slot));
+                break;
+            case TYPE_BOOLEAN:
+                out.writeByte((int) map.bitsAt(slot));
+                break;
+            case TYPE_STRING:
+            case TYPE_STRING_SET: {
+                final Object ref = map.rawRefAt(slot);
+                if (ref instanceof LazyValue) {
+                    //没被读取过的值直接拷贝原始字节，不用先解码
+                    ((LazyValue) ref).writeRaw(out);
+                } else if (type == TYPE_STRING) {
+                    writeString(out, (String) ref);
+                } else {
+                    final Set<?> set = (Set<?>) ref;
+                    out.writeInt(set.size());
+                    for (Object member : set) {
+                        writeString(out, (String) member);
+                    }
+                }
+                break;
+            }
+            default:
+                throw new IOException("Cannot write value of type " + type
+                        + " for key " + map.keyAt(slot));
+        }
+    }
+
+    /**
+     * A value of a {@link #readIndex lazily loaded} file that has not necessarily been decoded
+     * yet. Once decoded the value is kept, unless its {@link PrefsValueCache} evicts it; then it
+     * is decoded again on the next access.
+     */
+    static final class LazyValue {
+        private static final Object NOT_DECODED = new Object();
+
+        private final ByteBuffer mBuf;
+        private final byte mType;
+        private final int mOffset;
+        private final int mLength;
+        @Nullable
+        private final PrefsValueCache mCache;
+
+        /** The decoded value, or {@link #NOT_DECODED} */
+        private volatile Object mValue = NOT_DECODED;
+
+        /** Read since the cache's clock hand last passed, see {@link PrefsValueCache} */
+        volatile boolean mReferenced;
+
+        /** Whether this value is accounted in {@link #mCache} */
+        @GuardedBy("mCache")
+        boolean mCached;
+
+        LazyValue(ByteBuffer buf, byte type, int offset, int length,
+                @Nullable PrefsValueCache cache) {
+            mBuf = buf;
+            mType = type;
+            mOffset = offset;
+            mLength = length;
+            mCache = cache;
+        }
+
+        Object get() {
+            Object value = mValue;
+            if (value != NOT_DECODED) {
+                if (mCache != null) {
+                    mReferenced = true;
+                }
+                return value;
+            }
+            synchronized (this) {
+                value = mValue;
+                if (value == NOT_DECODED) {
+                    final ByteBuffer buf = mBuf.duplicate();
+                    buf.position(mOffset);
+                    try {
+                        value = mType == TYPE_STRING ? readString(buf) : readStringSet(buf);
+                    } catch (IOException e) {
+                        // The value was already walked over when the index was built
+                        throw new IllegalStateException(e);
+                    }
+                    mValue = value;
+                }
+            }
+            if (mCache != null) {
+                // Outside of the lock on this value, the cache locks itself and then evicts
+                mCache.add(this);
+            }
+            return value;
+        }
+
+        /**
+         * Drop the decoded value, called by {@link PrefsValueCache}.
+         */
+        void evict() {
+            mValue = NOT_DECODED;
+        }
+
+        /**
+         * @return an estimate of the heap taken by the decoded value: UTF-16 characters plus
+         *         per-object overhead
+         */
+        int decodedBytes() {
+            return 2 * mLength + 48;
+        }
+
+        void writeRaw(OutputStream out) throws IOException {
+            final ByteBuffer buf = mBuf.duplicate();
+            buf.position(mOffset);
+            if (buf.hasArray()) {
+                out.write(buf.array(), buf.arrayOffset() + mOffset, mLength);
+                return;
+            }
+            final byte[] chunk = new byte[Math.min(mLength, 4096)];
+            int left = mLength;
+            while (left > 0) {
+                final int n = Math.min(left, chunk.length);
+                buf.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+                left -= n;
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -20,6 +20,8 @@ import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.SharedPreferences;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.support.annotation.NonNull;
@@ -34,6 +36,9 @@ import com.android.internal.annotations.GuardedBy;
 
 import java.io.File;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 class ContextImpl extends ContextWrapper {
     @UnsupportedAppUsage
@@ -47,6 +52,11 @@ class ContextImpl extends ContextWrapper {
     @UnsupportedAppUsage
     final @NonNull
     LoadedApk mPackageInfo;
+    /**
+     * Records preference files opened at startup, see {@link #startLearnedPrefetch}.
+     */
+    @GuardedBy("ContextImpl.class")
+    private static SharedPreferencesManifest sPrefetchManifest;
     @Override
     public SharedPreferences getSharedPreferences(String name, int mode) {
         if (mPackageInfo.getApplicationInfo().targetSdkVersion <
@@ -69,6 +79,9 @@ class ContextImpl extends ContextWrapper {
                 file = getSharedPreferencesPath(name);
                 mSharedPrefsPaths.put(name, file);
             }
+            if (sPrefetchManifest != null) {
+                sPrefetchManifest.record(name, mode);
+            }
         }
         return getSharedPreferences(file, mode);
     }
@@ -84,14 +97,7 @@ class ContextImpl extends ContextWrapper {
                 //检查读写模式(忽略)
                 checkMode(mode);
                 //API26以上，判断存储权限问题(忽略)
-                if (getApplicationInfo().targetSdkVersion >= Build.VERSION_CODES.O) {
-                    if (isCredentialProtectedStorage()
-                            && !getSystemService(UserManager.class)
-                            .isUserUnlockingOrUnlocked(UserHandle.myUserId())) {
-                        throw new IllegalStateException("SharedPreferences in credential encrypted "
-                                + "storage are not available until after user is unlocked");
-                    }
-                }
+                checkSharedPreferencesStorage();
                 //创建SharedPreferencesImpl并保存在缓存里
                 sp = new SharedPreferencesImpl(file, mode);
                 cache.put(file, sp);
@@ -105,6 +111,236 @@ class ContextImpl extends ContextWrapper {
         }
         return sp;
     }
+    /**
+     * Start loading all of the named preference files in parallel, without waiting for any
+     * of them. Paths and cache entries for all names are set up under a single acquisition of
+     * the cache lock.
+     *
+     * @param names The preference file names, as passed to {@link #getSharedPreferences}
+     * @param mode  Operating mode, as for {@link #getSharedPreferences}
+     * @return A handle to wait for the files to be loaded
+     */
+    public SharedPreferencesPrefetch prefetchSharedPreferences(List<String> names, int mode) {
+        final SharedPreferencesImpl[] prefs = new SharedPreferencesImpl[names.size()];
+        final boolean[] existed = new boolean[prefs.length];
+        final boolean nullIsValidName = mPackageInfo.getApplicationInfo().targetSdkVersion
+                < Build.VERSION_CODES.KITKAT;
+        synchronized (ContextImpl.class) {
+            if (mSharedPrefsPaths == null) {
+                mSharedPrefsPaths = new ArrayMap<>();
+            }
+            final ArrayMap<File, SharedPreferencesImpl> cache = getSharedPreferencesCacheLocked();
+            for (int i = 0; i < prefs.length; i++) {
+                String name = names.get(i);
+                if (name == null && nullIsValidName) {
+                    name = "null";
+                }
+                File file = mSharedPrefsPaths.get(name);
+                if (file == null) {
+                    file = getSharedPreferencesPath(name);
+                    mSharedPrefsPaths.put(name, file);
+                }
+                SharedPreferencesImpl sp = cache.get(file);
+                if (sp == null) {
+                    checkMode(mode);
+                    checkSharedPreferencesStorage();
+                    //创建时就已经交给加载线程池开始加载了
+                    sp = new SharedPreferencesImpl(file, mode);
+                    cache.put(file, sp);
+                } else {
+                    existed[i] = true;
+                }
+                prefs[i] = sp;
+            }
+        }
+        if ((mode & Context.MODE_MULTI_PROCESS) != 0 ||
+                getApplicationInfo().targetSdkVersion < Build.VERSION_CODES.HONEYCOMB) {
+            for (int i = 0; i < prefs.length; i++) {
+                if (existed[i]) {
+                    prefs[i].startReloadIfChangedUnexpectedly();
+                }
+            }
+        }
+        return new SharedPreferencesPrefetch(prefs);
+    }
+
+    /**
+     * Prefetch the preference files the previous process opened during its first
+     * {@code recordWindowMillis} ms, and record the files this process opens through
+     * {@link #getSharedPreferences(String, int)} during the same window for the next one.
+     *
+     * The window starts with this call, so call it as early as possible, e.g. from
+     * {@code Application.onCreate}. Only the first call per process has an effect.
+     *
+     * @param recordWindowMillis How long to record opened preference files
+     */
+    public void startLearnedPrefetch(long recordWindowMillis) {
+        final SharedPreferencesManifest manifest;
+        synchronized (ContextImpl.class) {
+            if (sPrefetchManifest != null) {
+                return;
+            }
+            manifest = new SharedPreferencesManifest(getCodeCacheDir(), recordWindowMillis);
+            sPrefetchManifest = manifest;
+        }
+
+        //读上次启动记录下的文件列表并预加载，放在加载线程里做避免主线程读文件
+        SharedPreferencesLoader.queue(() -> {
+            final ArrayMap<Integer, List<String>> namesByMode = new ArrayMap<>();
+            for (Map.Entry<String, Integer> e : manifest.read().entrySet()) {
+                List<String> names = namesByMode.get(e.getValue());
+                if (names == null) {
+                    names = new ArrayList<>();
+                    namesByMode.put(e.getValue(), names);
+                }
+                names.add(e.getKey());
+            }
+            for (int i = 0; i < namesByMode.size(); i++) {
+                try {
+                    prefetchSharedPreferences(namesByMode.valueAt(i), namesByMode.keyAt(i));
+                } catch (RuntimeException e) {
+                    // E.g. a file in credential encrypted storage that is locked right now
+                    Log.w(TAG, "Cannot prefetch " + namesByMode.valueAt(i), e);
+                }
+            }
+        });
+
+        new Handler(Looper.getMainLooper()).postDelayed(
+                () -> SharedPreferencesLoader.queue(manifest::finishAndWrite),
+                recordWindowMillis);
+    }
+
+    /**
+     * Opt in to (or out of) storing preference files in a compact binary format instead of
+     * XML. Existing XML files are rewritten once loaded; files are readable in either format,
+     * so this can be turned off again. Call before the first preferences are loaded.
+     */
+    public void setSharedPreferencesBinaryFormatEnabled(boolean enabled) {
+        SharedPreferencesImpl.setUseBinaryFormat(enabled);
+    }
+
+    /**
+     * Set the file size from which preference files are memory-mapped when loaded instead of
+     * read through a stream. Pass {@link Long#MAX_VALUE} to never map them.
+     */
+    public void setSharedPreferencesMmapThreshold(long bytes) {
+        SharedPreferencesImpl.setMmapThreshold(bytes);
+    }
+
+    /**
+     * Opt in to (or out of) decoding strings and string sets of binary preference files only
+     * when first read. Affects files loaded from now on.
+     */
+    public void setSharedPreferencesLazyDecodingEnabled(boolean enabled) {
+        SharedPreferencesImpl.setLazyDecoding(enabled);
+    }
+
+    /**
+     * Set how many preference files may be loaded in parallel, at least 1.
+     */
+    public void setSharedPreferencesLoaderThreads(int maxThreads) {
+        SharedPreferencesLoader.setMaxThreads(maxThreads);
+    }
+
+    /**
+     * Enable or disable caching decoded preference files in the code cache directory. A file
+     * that did not change since the last process decoded it is then loaded from its snapshot
+     * instead of being parsed again.
+     */
+    public void setSharedPreferencesSnapshotsEnabled(boolean enabled) {
+        SharedPreferencesImpl.setSnapshotDir(
+                enabled ? new File(getCodeCacheDir(), "shared_prefs_snapshots") : null);
+    }
+
+    /**
+     * Enable or disable sharing equal keys and string values between all preference files of
+     * this process. Applies to files loaded and edits committed from now on.
+     */
+    public void setSharedPreferencesStringDedupEnabled(boolean enabled) {
+        SharedPreferencesImpl.setStringDedup(enabled);
+    }
+
+    /**
+     * @return an estimate of the heap saved by sharing the strings of the loaded preference
+     *         files, in bytes
+     */
+    public long getSharedPreferencesStringDedupBytesSaved() {
+        return SharedPreferencesImpl.getStringDedupBytesSaved();
+    }
+
+    /**
+     * Limit how much heap decoded preference strings and string sets may take, for processes
+     * with very large preference files. Cold values are dropped and decoded again from the
+     * file when next read. Pass 0 to remove the limit. Affects files loaded from now on.
+     */
+    public void setSharedPreferencesMemoryBudget(long budgetBytes) {
+        SharedPreferencesImpl.setMemoryBudget(budgetBytes);
+    }
+
+    /**
+     * Merge apply() calls made within {@code windowMillis} of each other into one pending
+     * state and one disk write. Changes are still visible to readers right away. Pass 0 to
+     * turn this off.
+     */
+    public void setSharedPreferencesApplyCoalesceWindow(long windowMillis) {
+        SharedPreferencesImpl.setApplyCoalesceWindow(windowMillis);
+    }
+
+    /**
+     * @return a new transaction to commit edits to several preference files atomically
+     */
+    public SharedPreferencesTransaction beginSharedPreferencesTransaction() {
+        return new SharedPreferencesTransaction(this);
+    }
+
+    /**
+     * Returned by {@link #prefetchSharedPreferences} to wait for the prefetched files.
+     */
+    public static final class SharedPreferencesPrefetch {
+        private final SharedPreferencesImpl[] mPrefs;
+
+        SharedPreferencesPrefetch(SharedPreferencesImpl[] prefs) {
+            mPrefs = prefs;
+        }
+
+        /**
+         * @return true if all files have been loaded
+         */
+        public boolean isDone() {
+            for (SharedPreferencesImpl sp : mPrefs) {
+                if (!sp.isLoaded()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Block until all files have been loaded.
+         *
+         * @return the preferences, in the order their names were passed in
+         */
+        public List<SharedPreferences> await() {
+            final List<SharedPreferences> prefs = new ArrayList<>(mPrefs.length);
+            for (SharedPreferencesImpl sp : mPrefs) {
+                sp.awaitLoaded();
+                prefs.add(sp);
+            }
+            return prefs;
+        }
+    }
+
+    private void checkSharedPreferencesStorage() {
+        if (getApplicationInfo().targetSdkVersion >= Build.VERSION_CODES.O) {
+            if (isCredentialProtectedStorage()
+                    && !getSystemService(UserManager.class)
+                    .isUserUnlockingOrUnlocked(UserHandle.myUserId())) {
+                throw new IllegalStateException("SharedPreferences in credential encrypted "
+                        + "storage are not available until after user is unlocked");
+            }
+        }
+    }
+
     private void checkMode(int mode) {
         if (getApplicationInfo().targetSdkVersion >= Build.VERSION_CODES.N) {
             if ((mode & MODE_WORLD_READABLE) != 0) {
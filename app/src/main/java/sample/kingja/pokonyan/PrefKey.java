@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.kingja.pokonyan;
+
+import static sample.kingja.pokonyan.BinaryPrefsFormat.TYPE_BOOLEAN;
+import static sample.kingja.pokonyan.BinaryPrefsFormat.TYPE_FLOAT;
+import static sample.kingja.pokonyan.BinaryPrefsFormat.TYPE_INT;
+import static sample.kingja.pokonyan.BinaryPrefsFormat.TYPE_LONG;
+import static sample.kingja.pokonyan.BinaryPrefsFormat.TYPE_STRING;
+import static sample.kingja.pokonyan.BinaryPrefsFormat.TYPE_STRING_SET;
+
+import android.annotation.Nullable;
+
+import java.util.Set;
+
+/**
+ * A preference declared once with its name, type and default value, e.g.
+ * <pre>
+ *   static final PrefKey&lt;Boolean&gt; SHOW_FPS = PrefKey.ofBoolean("show_fps", false);
+ *   ...
+ *   if (prefs.getBoolean(SHOW_FPS)) { ... }
+ * </pre>
+ *
+ * The type is fixed by the factory method, so reads and writes through the key are checked
+ * at compile time, and {@link SharedPreferencesImpl#declareKey} checks it against what the
+ * file holds. A key also remembers the slot it was last found in. Reads through it skip
+ * the hash lookup for as long as the layout of the preferences does not change. Changing
+ * values keeps the layout; adding or removing keys changes it.
+ *
+ * Keys are immutable apart from that cache and can be shared between threads and between
+ * preference files.
+ *
+ * @param <T> the boxed value type
+ */
+public final class PrefKey<T> {
+    final String name;
+    final byte type;
+    /** Default of an int, long, float or boolean key, as {@link PrefsMap} stores it */
+    final long defBits;
+    /** Default of a string or string set key */
+    @Nullable
+    final Object defRef;
+
+    /** Last resolved slot, see {@link #slotIn} */
+    private volatile Resolution mResolution;
+
+    private static final class Resolution {
+        final Object layout;
+        final int slot;
+
+        Resolution(Object layout, int slot) {
+            this.layout = layout;
+            this.slot = slot;
+        }
+    }
+
+    private PrefKey(String name, byte type, long defBits, @Nullable Object defRef) {
+        if (name == null) {
+            throw new NullPointerException("name == null");
+        }
+        this.name = name;
+        this.type = type;
+        this.defBits = defBits;
+        this.defRef = defRef;
+    }
+
+    public static PrefKey<Integer> ofInt(String name, int defValue) {
+        return new PrefKey<>(name, TYPE_INT, defValue, null);
+    }
+
+    public static PrefKey<Long> ofLong(String name, long defValue) {
+        return new PrefKey<>(name, TYPE_LONG, defValue, null);
+    }
+
+    public static PrefKey<Float> ofFloat(String name, float defValue) {
+        return new PrefKey<>(name, TYPE_FLOAT, Float.floatToIntBits(defValue), null);
+    }
+
+    public static PrefKey<Boolean> ofBoolean(String name, boolean defValue) {
+        return new PrefKey<>(name, TYPE_BOOLEAN, defValue ? 1 : 0, null);
+    }
+
+    public static PrefKey<String> ofString(String name, @Nullable String defValue) {
+        return new PrefKey<>(name, TYPE_STRING, 0, defValue);
+    }
+
+    public static PrefKey<Set<String>> ofStringSet(String name,
+            @Nullable Set<String> defValues) {
+        return new PrefKey<>(name, TYPE_STRING_SET, 0, defValues);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the default value, boxed
+     */
+    @SuppressWarnings("unchecked")
+    public T getDefaultValue() {
+        switch (type) {
+            case TYPE_INT:
+                return (T) Integer.valueOf((int) defBits);
+            case TYPE_LONG:
+                return (T) Long.valueOf(defBits);
+            case TYPE_FLOAT:
+                return (T) Float.valueOf(Float.intBitsToFloat((int) defBits));
+            case TYPE_BOOLEAN:
+                return (T) Boolean.valueOf(defBits != 0);
+            default:
+                return (T) defRef;
+        }
+    }
+
+    /**
+     * @return the slot of this key in {@code map}, or -1, looking it up only if the layout of
+     *         {@code map} differs from the one it was last resolved against
+     */
+    int slotIn(PrefsMap map) {
+        final Object layout = map.layout();
+        final Resolution resolution = mResolution;
+        if (resolution != null && resolution.layout == layout) {
+            return resolution.slot;
+        }
+        final int slot = map.indexOf(name);
+        mResolution = new Resolution(layout, slot);
+        return slot;
+    }
+
+    @Override
+    public String toString() {
+        return "PrefKey{" + name + "}";
+    }
+}
@@ -0,0 +1,830 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.kingja.pokonyan;
+
+import static sample.kingja.pokonyan.BinaryPrefsFormat.TYPE_BOOLEAN;
+import static sample.kingja.pokonyan.BinaryPrefsFormat.TYPE_FLOAT;
+import static sample.kingja.pokonyan.BinaryPrefsFormat.TYPE_INT;
+import static sample.kingja.pokonyan.BinaryPrefsFormat.TYPE_LONG;
+import static sample.kingja.pokonyan.BinaryPrefsFormat.TYPE_NULL;
+import static sample.kingja.pokonyan.BinaryPrefsFormat.TYPE_STRING;
+import static sample.kingja.pokonyan.BinaryPrefsFormat.TYPE_STRING_SET;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * In-memory state of a {@link SharedPreferencesImpl}: an open-addressing hash table whose
+ * values are stored by type instead of as boxed objects.
+ *
+ * Every slot has a key, a type tag (one of the {@code BinaryPrefsFormat.TYPE_*} constants), a
+ * {@code long} holding the bits of an int, long, float or boolean value, and a reference holding
+ * a string or {@link PrefsStringSet}. Strings and string sets may also be held as a
+ * {@link BinaryPrefsFormat.LazyValue} that is decoded on first access.
+ *
+ * The typed getters mirror {@link android.content.SharedPreferences} and never box. The
+ * {@link java.util.Map} view boxes and is meant for {@code getAll()} and the XML writer.
+ *
+ * The slots are split into pages of up to {@value #MAX_PAGE_SIZE}, and a
+ * {@link #PrefsMap(PrefsMap) copy} shares all pages with the original. A page is only copied
+ * when the copy first modifies it, so deriving the next state from a published one costs
+ * O(slots / page size + changed pages * page size) instead of O(slots).
+ *
+ * A map can also keep its keys in sorted order, see {@link #buildSortedKeys}.
+ *
+ * Keys must not be {@code null}. Not thread safe.
+ *
+ * @hide
+ */
+final class PrefsMap extends AbstractMap<String, Object> {
+    private static final int MIN_CAPACITY = 8;
+
+    /**
+     * Type of a slot in an {@code Editor}'s modifications that removes the key. Never found in
+     * the state of a {@link SharedPreferencesImpl}.
+     */
+    static final byte TYPE_REMOVE = -1;
+
+    /** Slots per page, the unit of copy-on-write between a map and its copies */
+    private static final int MAX_PAGE_SIZE = 64;
+
+    private int mCapacity;
+    private int mPageShift;
+    private int mPageMask;
+
+    private String[][] mKeys;
+    private byte[][] mTypes;
+    private long[][] mBits;
+    private Object[][] mRefs;
+
+    /** Whether page i is private to this map and may be modified in place */
+    private boolean[] mOwned;
+
+    private int mSize;
+
+    /**
+     * Identity of the current key-to-slot assignment. Shared with copies and dropped whenever
+     * a key is added or removed or the table is resized, so a slot found for a key stays valid
+     * for as long as this token does. See {@link PrefKey}.
+     *
+     * Only created by {@link #layout()}, so that loading a file or adding keys in an editor
+     * does not allocate a token per key. Racing readers of a published map may each create
+     * one; that only costs a lookup.
+     */
+    private Object mLayout;
+
+    /**
+     * All keys in sorted order, or {@code null} if not kept. Copies inherit it and note the
+     * keys they add or remove in {@link #mChangedKeys} until {@link #updateSortedKeys}.
+     */
+    private volatile String[] mSortedKeys;
+    private ArrayList<String> mChangedKeys;
+
+    private Set<Entry<String, Object>> mEntrySet;
+    private Map<String, Object> mReadOnlyView;
+
+    PrefsMap() {
+        this(0);
+    }
+
+    PrefsMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Copy another map in O(pages): all pages are shared and only copied once either map
+     * modifies them.
+     */
+    PrefsMap(PrefsMap other) {
+        mCapacity = other.mCapacity;
+        mPageShift = other.mPageShift;
+        mPageMask = other.mPageMask;
+        mKeys = other.mKeys.clone();
+        mTypes = other.mTypes.clone();
+        mBits = other.mBits.clone();
+        mRefs = other.mRefs.clone();
+        mOwned = new boolean[mKeys.length];
+        Arrays.fill(other.mOwned, false);
+        mSize = other.mSize;
+        mLayout = other.mLayout;
+        mSortedKeys = other.mSortedKeys;
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < size) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        final int pageSize = Math.min(capacity, MAX_PAGE_SIZE);
+        final int pages = capacity / pageSize;
+        mCapacity = capacity;
+        mPageShift = Integer.numberOfTrailingZeros(pageSize);
+        mPageMask = pageSize - 1;
+        mKeys = new String[pages][pageSize];
+        mTypes = new byte[pages][pageSize];
+        mBits = new long[pages][pageSize];
+        mRefs = new Object[pages][pageSize];
+        mOwned = new boolean[pages];
+        Arrays.fill(mOwned, true);
+        mLayout = null;
+    }
+
+    private static int hash(String key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the slot holding {@code key}, or the empty slot it would be inserted at
+     */
+    private int findSlot(String key) {
+        final int mask = mCapacity - 1;
+        int i = hash(key) & mask;
+        String k;
+        while ((k = keyAt(i)) != null && k != key && !k.equals(key)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * @return the slot holding {@code key}, or -1
+     */
+    int indexOf(String key) {
+        if (key == null) {
+            return -1;
+        }
+        final int i = findSlot(key);
+        return keyAt(i) != null ? i : -1;
+    }
+
+    /**
+     * Make sure {@code key} has a slot, given the result of {@link #findSlot}.
+     *
+     * @return the slot of {@code key}
+     */
+    private int claim(int slot, String key) {
+        if (keyAt(slot) != null) {
+            return slot;
+        }
+        if (mSize + 1 > mCapacity * 3 / 4) {
+            grow();
+            slot = findSlot(key);
+        }
+        setKey(slot, key);
+        mSize++;
+        mLayout = null;
+        noteKeyChanged(key);
+        return slot;
+    }
+
+    private void grow() {
+        final String[][] keys = mKeys;
+        final byte[][] types = mTypes;
+        final long[][] bits = mBits;
+        final Object[][] refs = mRefs;
+        allocate(mCapacity * 2);
+        for (int page = 0; page < keys.length; page++) {
+            for (int i = 0; i < keys[page].length; i++) {
+                final String key = keys[page][i];
+                if (key != null) {
+                    final int slot = findSlot(key);
+                    setKey(slot, key);
+                    set(slot, types[page][i], bits[page][i], refs[page][i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the page of {@code slot}, after making sure this map may modify it
+     */
+    private int ownPage(int slot) {
+        final int page = slot >>> mPageShift;
+        if (!mOwned[page]) {
+            mKeys[page] = mKeys[page].clone();
+            mTypes[page] = mTypes[page].clone();
+            mBits[page] = mBits[page].clone();
+            mRefs[page] = mRefs[page].clone();
+            mOwned[page] = true;
+        }
+        return page;
+    }
+
+    private void setKey(int slot, String key) {
+        mKeys[ownPage(slot)][slot & mPageMask] = key;
+    }
+
+    private void set(int slot, byte type, long bits, Object ref) {
+        final int page = ownPage(slot);
+        final int i = slot & mPageMask;
+        mTypes[page][i] = type;
+        mBits[page][i] = bits;
+        mRefs[page][i] = ref;
+    }
+
+    private void clearSlot(int slot) {
+        final int page = ownPage(slot);
+        final int i = slot & mPageMask;
+        mKeys[page][i] = null;
+        mRefs[page][i] = null;
+    }
+
+    // Typed mutators. Each returns false if the map already held exactly that value.
+
+    boolean putInt(String key, int value) {
+        final int slot = findSlot(key);
+        if (keyAt(slot) != null && typeAt(slot) == TYPE_INT && (int) bitsAt(slot) == value) {
+            return false;
+        }
+        set(claim(slot, key), TYPE_INT, value, null);
+        return true;
+    }
+
+    boolean putLong(String key, long value) {
+        final int slot = findSlot(key);
+        if (keyAt(slot) != null && typeAt(slot) == TYPE_LONG && bitsAt(slot) == value) {
+            return false;
+        }
+        set(claim(slot, key), TYPE_LONG, value, null);
+        return true;
+    }
+
+    boolean putFloat(String key, float value) {
+        // Same notion of equality as Float.equals()
+        final int bits = Float.floatToIntBits(value);
+        final int slot = findSlot(key);
+        if (keyAt(slot) != null && typeAt(slot) == TYPE_FLOAT && (int) bitsAt(slot) == bits) {
+            return false;
+        }
+        set(claim(slot, key), TYPE_FLOAT, bits, null);
+        return true;
+    }
+
+    boolean putBoolean(String key, boolean value) {
+        final long bits = value ? 1 : 0;
+        final int slot = findSlot(key);
+        if (keyAt(slot) != null && typeAt(slot) == TYPE_BOOLEAN && bitsAt(slot) == bits) {
+            return false;
+        }
+        set(claim(slot, key), TYPE_BOOLEAN, bits, null);
+        return true;
+    }
+
+    boolean putString(String key, String value) {
+        return putRef(key, TYPE_STRING, value);
+    }
+
+    boolean putStringSet(String key, Set<String> value) {
+        return putRef(key, TYPE_STRING_SET, PrefsStringSet.copyOf(value));
+    }
+
+    /**
+     * Store an explicit {@code null} value, as found in XML written by older code.
+     */
+    boolean putNull(String key) {
+        final int slot = findSlot(key);
+        if (keyAt(slot) != null && typeAt(slot) == TYPE_NULL) {
+            return false;
+        }
+        set(claim(slot, key), TYPE_NULL, 0, null);
+        return true;
+    }
+
+    /**
+     * Store a string or string set that has not been decoded yet.
+     */
+    void putLazy(String key, byte type, BinaryPrefsFormat.LazyValue value) {
+        set(claim(findSlot(key), key), type, 0, value);
+    }
+
+    private boolean putRef(String key, byte type, Object value) {
+        final int slot = findSlot(key);
+        if (keyAt(slot) != null && typeAt(slot) == type && value.equals(refAt(slot))) {
+            return false;
+        }
+        set(claim(slot, key), type, 0, value);
+        return true;
+    }
+
+    /**
+     * Record that {@code key} is to be removed, see {@link #TYPE_REMOVE}.
+     */
+    void putRemove(String key) {
+        set(claim(findSlot(key), key), TYPE_REMOVE, 0, null);
+    }
+
+    /**
+     * Store the value held in {@code slot} of {@code src} without boxing it.
+     *
+     * @return false if this map already held exactly that value
+     */
+    boolean putFrom(PrefsMap src, int slot) {
+        final String key = src.keyAt(slot);
+        final byte type = src.typeAt(slot);
+        final long bits = src.bitsAt(slot);
+        final Object ref = src.rawRefAt(slot);
+        final int dst = findSlot(key);
+        if (keyAt(dst) != null && typeAt(dst) == type) {
+            if (type == TYPE_STRING || type == TYPE_STRING_SET) {
+                if (src.refAt(slot).equals(refAt(dst))) {
+                    return false;
+                }
+            } else if (bitsAt(dst) == bits) {
+                return false;
+            }
+        }
+        set(claim(dst, key), type, bits, ref);
+        return true;
+    }
+
+    /**
+     * Store a boxed value, as found in an {@code Editor}'s modifications.
+     */
+    boolean putValue(String key, Object value) {
+        if (value instanceof String) {
+            return putString(key, (String) value);
+        } else if (value instanceof Integer) {
+            return putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            return putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            return putFloat(key, (Float) value);
+        } else if (value instanceof Boolean) {
+            return putBoolean(key, (Boolean) value);
+        } else if (value instanceof Set) {
+            @SuppressWarnings("unchecked")
+            final Set<String> values = (Set<String>) value;
+            return putStringSet(key, values);
+        } else if (value == null) {
+            return putNull(key);
+        }
+        throw new IllegalArgumentException("Unsupported value type "
+                + value.getClass().getName() + " for key " + key);
+    }
+
+    /**
+     * @return false if there was no mapping for {@code key}
+     */
+    boolean delete(String key) {
+        final int slot = indexOf(key);
+        if (slot < 0) {
+            return false;
+        }
+        removeAt(slot);
+        return true;
+    }
+
+    private void removeAt(int hole) {
+        final int mask = mCapacity - 1;
+        noteKeyChanged(keyAt(hole));
+        clearSlot(hole);
+        mSize--;
+        mLayout = null;
+
+        // Backward shift deletion: move later entries of the probe run into the hole so that
+        // lookups never have to step over deleted slots.
+        int i = (hole + 1) & mask;
+        String k;
+        while ((k = keyAt(i)) != null) {
+            final int ideal = hash(k) & mask;
+            if (((i - ideal) & mask) >= ((i - hole) & mask)) {
+                setKey(hole, k);
+                set(hole, typeAt(i), bitsAt(i), rawRefAt(i));
+                clearSlot(i);
+                hole = i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Replace keys, strings and members of string sets by the equal strings in {@code pool}.
+     * Values that are still held lazily are left alone.
+     *
+     * @return the estimated bytes of the strings that were replaced
+     */
+    long internStrings(PrefsStringPool pool) {
+        long saved = 0;
+        for (int slot = 0; slot < mCapacity; slot++) {
+            final String key = keyAt(slot);
+            if (key == null) {
+                continue;
+            }
+            final String pooledKey = pool.intern(key);
+            if (pooledKey != key) {
+                // Equal, so the slot does not change
+                setKey(slot, pooledKey);
+                saved += PrefsStringPool.sizeOf(key);
+            }
+            final byte type = typeAt(slot);
+            final Object ref = rawRefAt(slot);
+            if (type == TYPE_STRING && ref instanceof String) {
+                final String pooled = pool.intern((String) ref);
+                if (pooled != ref) {
+                    set(slot, type, 0, pooled);
+                    saved += PrefsStringPool.sizeOf(pooled);
+                }
+            } else if (type == TYPE_STRING_SET && ref instanceof Set) {
+                @SuppressWarnings("unchecked")
+                final Set<String> values = (Set<String>) ref;
+                final String[] pooled = new String[values.size()];
+                int i = 0;
+                for (String value : values) {
+                    pooled[i] = pool.intern(value);
+                    if (pooled[i] != value) {
+                        saved += PrefsStringPool.sizeOf(value);
+                    }
+                    i++;
+                }
+                set(slot, type, 0, PrefsStringSet.wrap(pooled, i));
+            }
+        }
+        return saved;
+    }
+
+    // Sorted keys
+
+    private void noteKeyChanged(String key) {
+        if (mSortedKeys != null) {
+            if (mChangedKeys == null) {
+                mChangedKeys = new ArrayList<>();
+            }
+            mChangedKeys.add(key);
+        }
+    }
+
+    /**
+     * @return all keys in sorted order, or {@code null} if this map does not keep them. Must
+     *         not be modified.
+     */
+    String[] sortedKeys() {
+        return mSortedKeys;
+    }
+
+    /**
+     * Start keeping the keys in sorted order, in this map and all copies made from now on.
+     * Takes O(n log n) once; afterwards each copy only merges the keys it added or removed.
+     *
+     * @return the sorted keys
+     */
+    String[] buildSortedKeys() {
+        String[] keys = mSortedKeys;
+        if (keys == null) {
+            keys = new String[mSize];
+            int n = 0;
+            for (int slot = 0; slot < mCapacity; slot++) {
+                final String key = keyAt(slot);
+                if (key != null) {
+                    keys[n++] = key;
+                }
+            }
+            Arrays.sort(keys);
+            mChangedKeys = null;
+            mSortedKeys = keys;
+        }
+        return keys;
+    }
+
+    /**
+     * Merge the keys added or removed since this map was copied into the sorted keys. Must be
+     * called before a map that keeps sorted keys is published.
+     */
+    void updateSortedKeys() {
+        final String[] old = mSortedKeys;
+        final ArrayList<String> changedKeys = mChangedKeys;
+        if (old == null || changedKeys == null) {
+            return;
+        }
+        mChangedKeys = null;
+        final String[] changed = changedKeys.toArray(new String[changedKeys.size()]);
+        Arrays.sort(changed);
+
+        // A changed key is kept if it is still present, whatever happened to it in between
+        final String[] merged = new String[mSize];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < old.length || j < changed.length) {
+            final int cmp = i == old.length ? 1
+                    : j == changed.length ? -1 : old[i].compareTo(changed[j]);
+            if (cmp < 0) {
+                merged[n++] = old[i++];
+                continue;
+            }
+            final String key = changed[j];
+            if (indexOf(key) >= 0) {
+                merged[n++] = key;
+            }
+            if (cmp == 0) {
+                i++;
+            }
+            while (j < changed.length && changed[j].equals(key)) {
+                j++;
+            }
+        }
+        mSortedKeys = merged;
+    }
+
+    // Typed getters with the semantics of the SharedPreferences getters: a missing key or an
+    // explicit null yields the default, a value of another type throws ClassCastException.
+    // The ...At variants take a slot from indexOf() or PrefKey.slotIn(), -1 for a missing key.
+
+    int getInt(String key, int defValue) {
+        return getIntAt(indexOf(key), defValue);
+    }
+
+    int getIntAt(int slot, int defValue) {
+        if (slot < 0 || typeAt(slot) == TYPE_NULL) {
+            return defValue;
+        }
+        checkType(slot, TYPE_INT, Integer.class);
+        return (int) bitsAt(slot);
+    }
+
+    long getLong(String key, long defValue) {
+        return getLongAt(indexOf(key), defValue);
+    }
+
+    long getLongAt(int slot, long defValue) {
+        if (slot < 0 || typeAt(slot) == TYPE_NULL) {
+            return defValue;
+        }
+        checkType(slot, TYPE_LONG, Long.class);
+        return bitsAt(slot);
+    }
+
+    float getFloat(String key, float defValue) {
+        return getFloatAt(indexOf(key), defValue);
+    }
+
+    float getFloatAt(int slot, float defValue) {
+        if (slot < 0 || typeAt(slot) == TYPE_NULL) {
+            return defValue;
+        }
+        checkType(slot, TYPE_FLOAT, Float.class);
+        return Float.intBitsToFloat((int) bitsAt(slot));
+    }
+
+    boolean getBoolean(String key, boolean defValue) {
+        return getBooleanAt(indexOf(key), defValue);
+    }
+
+    boolean getBooleanAt(int slot, boolean defValue) {
+        if (slot < 0 || typeAt(slot) == TYPE_NULL) {
+            return defValue;
+        }
+        checkType(slot, TYPE_BOOLEAN, Boolean.class);
+        return bitsAt(slot) != 0;
+    }
+
+    String getString(String key, String defValue) {
+        return getStringAt(indexOf(key), defValue);
+    }
+
+    String getStringAt(int slot, String defValue) {
+        if (slot < 0 || typeAt(slot) == TYPE_NULL) {
+            return defValue;
+        }
+        checkType(slot, TYPE_STRING, String.class);
+        return (String) refAt(slot);
+    }
+
+    Set<String> getStringSet(String key, Set<String> defValues) {
+        return getStringSetAt(indexOf(key), defValues);
+    }
+
+    Set<String> getStringSetAt(int slot, Set<String> defValues) {
+        if (slot < 0 || typeAt(slot) == TYPE_NULL) {
+            return defValues;
+        }
+        checkType(slot, TYPE_STRING_SET, Set.class);
+        @SuppressWarnings("unchecked")
+        final Set<String> values = (Set<String>) refAt(slot);
+        return values;
+    }
+
+    private void checkType(int slot, byte type, Class<?> expected) {
+        if (typeAt(slot) != type) {
+            throw new ClassCastException(valueAt(slot).getClass().getName()
+                    + " cannot be cast to " + expected.getName());
+        }
+    }
+
+    // Slot access, for code that walks the whole table without boxing.
+
+    /**
+     * @return the token identifying the current key-to-slot assignment, see {@link #mLayout}
+     */
+    Object layout() {
+        Object layout = mLayout;
+        if (layout == null) {
+            layout = new Object();
+            mLayout = layout;
+        }
+        return layout;
+    }
+
+    /**
+     * @return the number of slots; slots without a key are empty
+     */
+    int capacity() {
+        return mCapacity;
+    }
+
+    String keyAt(int slot) {
+        return mKeys[slot >>> mPageShift][slot & mPageMask];
+    }
+
+    byte typeAt(int slot) {
+        return mTypes[slot >>> mPageShift][slot & mPageMask];
+    }
+
+    /**
+     * @return the raw bits of an int, long, float or boolean value
+     */
+    long bitsAt(int slot) {
+        return mBits[slot >>> mPageShift][slot & mPageMask];
+    }
+
+    /**
+     * @return the string or string set, decoded if it was held lazily
+     */
+    Object refAt(int slot) {
+        final Object ref = rawRefAt(slot);
+        return ref instanceof BinaryPrefsFormat.LazyValue
+                ? ((BinaryPrefsFormat.LazyValue) ref).get() : ref;
+    }
+
+    /**
+     * @return the string, string set or {@link BinaryPrefsFormat.LazyValue} as stored
+     */
+    Object rawRefAt(int slot) {
+        return mRefs[slot >>> mPageShift][slot & mPageMask];
+    }
+
+    /**
+     * @return the value in {@code slot}, boxed
+     */
+    Object valueAt(int slot) {
+        switch (typeAt(slot)) {
+            case TYPE_INT:
+                return (int) bitsAt(slot);
+            case TYPE_LONG:
+                return bitsAt(slot);
+            case TYPE_FLOAT:
+                return Float.intBitsToFloat((int) bitsAt(slot));
+            case TYPE_BOOLEAN:
+                return bitsAt(slot) != 0;
+            case TYPE_NULL:
+                return null;
+            default:
+                return refAt(slot);
+        }
+    }
+
+    // Map
+
+    /**
+     * @return an unmodifiable view of this map, created once. Only safe to hand out for maps
+     *         that are no longer modified.
+     */
+    Map<String, Object> readOnlyView() {
+        if (mReadOnlyView == null) {
+            mReadOnlyView = Collections.unmodifiableMap(this);
+        }
+        return mReadOnlyView;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && indexOf((String) key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        final int slot = indexOf((String) key);
+        return slot >= 0 ? valueAt(slot) : null;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        final int slot = indexOf(key);
+        final Object previous = slot >= 0 ? valueAt(slot) : null;
+        putValue(key, value);
+        return previous;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        final int slot = indexOf((String) key);
+        if (slot < 0) {
+            return null;
+        }
+        final Object previous = valueAt(slot);
+        removeAt(slot);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        if (mSortedKeys != null) {
+            mSortedKeys = new String[0];
+            mChangedKeys = null;
+        }
+        for (boolean owned : mOwned) {
+            if (!owned) {
+                // Pages are shared with other maps, so start over instead of wiping them
+                allocate(MIN_CAPACITY);
+                mSize = 0;
+                return;
+            }
+        }
+        for (int page = 0; page < mKeys.length; page++) {
+            Arrays.fill(mKeys[page], null);
+            Arrays.fill(mRefs[page], null);
+        }
+        mSize = 0;
+        mLayout = null;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public int size() {
+                    return mSize;
+                }
+
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new EntryIterator();
+                }
+            };
+        }
+        return mEntrySet;
+    }
+
+    private final class EntryIterator implements Iterator<Entry<String, Object>> {
+        private int mNext = advance(0);
+
+        private int advance(int slot) {
+            while (slot < mCapacity && keyAt(slot) == null) {
+                slot++;
+            }
+            return slot;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext < mCapacity;
+        }
+
+        @Override
+        public Entry<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final int slot = mNext;
+            mNext = advance(slot + 1);
+            return new SimpleImmutableEntry<>(keyAt(slot), valueAt(slot));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.kingja.pokonyan;
+
+import android.system.StructStat;
+import android.util.Log;
+
+import libcore.io.IoUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Cache of the decoded contents of one XML preferences file, so a new process can skip parsing
+ * the XML when the file did not change since the snapshot was taken.
+ *
+ * <p>Layout (all numbers big-endian):
+ * <pre>
+ *   int     magic          {@link #MAGIC}
+ *   string  path           absolute path of the preferences file
+ *   long    mtime seconds  of the preferences file when the snapshot was taken
+ *   long    mtime nanos
+ *   long    size           of the preferences file when the snapshot was taken
+ *   int     payload length
+ *   long    payload CRC32
+ *   payload                the contents in {@link BinaryPrefsFormat}
+ * </pre>
+ * A snapshot whose path, mtime or size does not match the file, or whose checksum does not
+ * match its payload, is ignored.
+ *
+ * @hide
+ */
+final class PrefsSnapshotCache {
+    private static final String TAG = "PrefsSnapshotCache";
+
+    /** "SPSN" */
+    static final int MAGIC = 0x5350534e;
+
+    private final File mPrefsFile;
+    private final File mSnapshotFile;
+
+    PrefsSnapshotCache(File dir, File prefsFile) {
+        mPrefsFile = prefsFile;
+        final String path = prefsFile.getAbsolutePath();
+        mSnapshotFile = new File(dir, Integer.toHexString(path.hashCode()) + "-"
+                + prefsFile.getName());
+    }
+
+    /**
+     * @param stat          current stat of the preferences file
+     * @param mmapThreshold snapshots at least this large are mapped instead of read
+     * @return the snapshot payload, positioned at its {@link BinaryPrefsFormat} header, or
+     *         {@code null} if there is no valid snapshot for this stat
+     */
+    ByteBuffer read(StructStat stat, long mmapThreshold) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mSnapshotFile);
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            final ByteBuffer buf;
+            if (size >= mmapThreshold) {
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buf = BinaryPrefsFormat.readBuffer(in, size);
+            }
+
+            if (buf.remaining() < 4 || buf.getInt() != MAGIC) {
+                return null;
+            }
+            if (!mPrefsFile.getAbsolutePath().equals(BinaryPrefsFormat.readString(buf))
+                    || buf.getLong() != stat.st_mtim.tv_sec
+                    || buf.getLong() != stat.st_mtim.tv_nsec
+                    || buf.getLong() != stat.st_size) {
+                // Preferences file changed since the snapshot was taken
+                return null;
+            }
+            final int length = buf.getInt();
+            final long checksum = buf.getLong();
+            if (length != buf.remaining()) {
+                return null;
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(buf.duplicate());
+            if (crc.getValue() != checksum) {
+                Log.w(TAG, "Ignoring corrupt snapshot " + mSnapshotFile);
+                return null;
+            }
+            return buf;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Cannot read snapshot " + mSnapshotFile, e);
+            return null;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Replace the snapshot with {@code map}, which must be the contents of the preferences file
+     * as of {@code stat}. The snapshot is only a cache, so it is not synced.
+     */
+    void write(PrefsMap map, StructStat stat) {
+        final File tmp = new File(mSnapshotFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            BinaryPrefsFormat.writeMap(map, 0, payload);
+            final CRC32 crc = new CRC32();
+            final byte[] bytes = payload.toByteArray();
+            crc.update(bytes, 0, bytes.length);
+
+            final File dir = mSnapshotFile.getParentFile();
+            if (!dir.exists() && !dir.mkdirs()) {
+                Log.w(TAG, "Couldn't create snapshot directory " + dir);
+                return;
+            }
+            out = new FileOutputStream(tmp);
+            final DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            final byte[] path = mPrefsFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+            data.writeInt(path.length);
+            data.write(path);
+            data.writeLong(stat.st_mtim.tv_sec);
+            data.writeLong(stat.st_mtim.tv_nsec);
+            data.writeLong(stat.st_size);
+            data.writeInt(bytes.length);
+            data.writeLong(crc.getValue());
+            data.write(bytes);
+            data.flush();
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(mSnapshotFile)) {
+                Log.w(TAG, "Couldn't rename " + tmp + " to " + mSnapshotFile);
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write snapshot " + mSnapshotFile, e);
+            tmp.delete();
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.kingja.pokonyan;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of the keys and string values held by all {@link SharedPreferencesImpl} instances of a
+ * process, so equal strings loaded from or written to different files share one object.
+ *
+ * Strings are only weakly referenced: once no preferences hold a string any more, it is
+ * collected and drops out of the pool.
+ *
+ * @hide
+ */
+final class PrefsStringPool {
+    /** Shallow size of a String and its backing array, not counting the characters */
+    private static final int STRING_OVERHEAD_BYTES = 24 + 16;
+
+    @GuardedBy("this")
+    private final WeakHashMap<String, WeakReference<String>> mPool = new WeakHashMap<>();
+
+    @GuardedBy("this")
+    private long mBytesSaved;
+
+    /**
+     * @return the pooled string equal to {@code s}, adding {@code s} to the pool if there is
+     *         none
+     */
+    String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        synchronized (this) {
+            final WeakReference<String> ref = mPool.get(s);
+            final String pooled = ref != null ? ref.get() : null;
+            if (pooled == null) {
+                mPool.put(s, new WeakReference<>(s));
+                return s;
+            }
+            return pooled;
+        }
+    }
+
+    /**
+     * @return an estimate of the heap taken by {@code s}, which is what replacing it with an
+     *         equal pooled string saves
+     */
+    static long sizeOf(String s) {
+        return STRING_OVERHEAD_BYTES + 2L * s.length();
+    }
+
+    /**
+     * Account for a change in the duplicates retained by some preference file, see
+     * {@link #getBytesSaved}.
+     */
+    synchronized void addBytesSaved(long delta) {
+        mBytesSaved += delta;
+    }
+
+    /**
+     * @return an estimate of the bytes no longer retained because duplicate strings of the
+     *         loaded preference files were replaced by pooled ones. Each file counts as of its
+     *         last load, so edits and reloads do not inflate the figure.
+     */
+    synchronized long getBytesSaved() {
+        return mBytesSaved;
+    }
+}
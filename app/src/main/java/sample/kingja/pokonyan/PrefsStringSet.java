@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.kingja.pokonyan;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable string set of a {@link SharedPreferencesImpl}, stored as one sorted array.
+ *
+ * It costs a reference per member instead of a {@link java.util.HashSet} entry per member, and
+ * {@link #contains} is a binary search. Because it cannot be modified, the same instance can be
+ * held by the in-memory state, handed to the writer thread and returned by
+ * {@code getStringSet()} without copying.
+ *
+ * Like the sets read from XML, it may contain {@code null}.
+ *
+ * @hide
+ */
+final class PrefsStringSet extends AbstractSet<String> {
+    private static final String[] NO_VALUES = new String[0];
+
+    /** Non-null members, sorted and distinct */
+    private final String[] mValues;
+    private final boolean mHasNull;
+
+    /** Cached {@link #hashCode}, 0 if not computed yet */
+    private int mHashCode;
+
+    private PrefsStringSet(String[] values, boolean hasNull) {
+        mValues = values;
+        mHasNull = hasNull;
+    }
+
+    /**
+     * @return a set with the members of {@code values}, which is returned as is if it already
+     *         is a {@code PrefsStringSet}
+     */
+    static PrefsStringSet copyOf(Collection<String> values) {
+        if (values instanceof PrefsStringSet) {
+            return (PrefsStringSet) values;
+        }
+        final String[] array = values.toArray(new String[values.size()]);
+        return wrap(array, array.length);
+    }
+
+    /**
+     * @return a set of the first {@code count} strings in {@code values}, taking ownership of
+     *         the array
+     */
+    static PrefsStringSet wrap(String[] values, int count) {
+        boolean hasNull = false;
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (values[i] == null) {
+                hasNull = true;
+            } else {
+                values[n++] = values[i];
+            }
+        }
+        Arrays.sort(values, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || !values[i].equals(values[distinct - 1])) {
+                values[distinct++] = values[i];
+            }
+        }
+        if (distinct == 0) {
+            return new PrefsStringSet(NO_VALUES, hasNull);
+        }
+        return new PrefsStringSet(distinct == values.length ? values
+                : Arrays.copyOf(values, distinct), hasNull);
+    }
+
+    @Override
+    public int size() {
+        return mValues.length + (mHasNull ? 1 : 0);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o == null) {
+            return mHasNull;
+        }
+        return o instanceof String && Arrays.binarySearch(mValues, o) >= 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = mHashCode;
+        if (h == 0) {
+            for (String value : mValues) {
+                h += value.hashCode();
+            }
+            mHashCode = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof PrefsStringSet) {
+            final PrefsStringSet other = (PrefsStringSet) o;
+            return mHasNull == other.mHasNull && Arrays.equals(mValues, other.mValues);
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            // -1 stands for the null member
+            private int mNext = mHasNull ? -1 : 0;
+
+            @Override
+            public boolean hasNext() {
+                return mNext < mValues.length;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final int i = mNext++;
+                return i < 0 ? null : mValues[i];
+            }
+        };
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.kingja.pokonyan;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/**
+ * Bounds the heap taken by decoded strings and string sets of lazily loaded preference files.
+ *
+ * Every {@link BinaryPrefsFormat.LazyValue} created with a cache reports itself here when it
+ * is decoded. Once the decoded values take more than the budget, values are evicted with the
+ * CLOCK algorithm: a value that was read since the hand last passed it gets another round,
+ * any other value drops its decoded form and is decoded again from the file mapping the next
+ * time it is read.
+ *
+ * Values are only held weakly. Once no state of any file refers to a value any more, e.g.
+ * after its key was overwritten or its file reloaded, it is collected together with the
+ * buffer it decodes from and stops counting against the budget.
+ *
+ * Keys and primitive values are not covered; they stay in the {@link PrefsMap} tables.
+ *
+ * @hide
+ */
+final class PrefsValueCache {
+    private final long mBudgetBytes;
+
+    /** Receives the entries of values that were collected */
+    private final ReferenceQueue<BinaryPrefsFormat.LazyValue> mCollected = new ReferenceQueue<>();
+
+    @GuardedBy("this")
+    private final ArrayList<Entry> mValues = new ArrayList<>();
+
+    @GuardedBy("this")
+    private int mHand;
+
+    @GuardedBy("this")
+    private long mBytes;
+
+    /** Entries in {@link #mValues} whose value was collected */
+    @GuardedBy("this")
+    private int mNumCollected;
+
+    private static final class Entry extends WeakReference<BinaryPrefsFormat.LazyValue> {
+        final int bytes;
+
+        /** Whether {@link #bytes} still count towards {@link #mBytes}, guarded by the cache */
+        boolean accounted = true;
+
+        Entry(BinaryPrefsFormat.LazyValue value,
+                ReferenceQueue<BinaryPrefsFormat.LazyValue> queue) {
+            super(value, queue);
+            bytes = value.decodedBytes();
+        }
+    }
+
+    PrefsValueCache(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Account for a value that was just decoded, evicting others if over budget.
+     */
+    void add(BinaryPrefsFormat.LazyValue value) {
+        synchronized (this) {
+            if (value.mCached) {
+                // Decoded again by a racing reader after being evicted and re-added
+                return;
+            }
+            removeCollectedLocked();
+            value.mCached = true;
+            final Entry added = new Entry(value, mCollected);
+            mValues.add(added);
+            mBytes += added.bytes;
+
+            while (mBytes > mBudgetBytes && mValues.size() > 1) {
+                if (mHand >= mValues.size()) {
+                    mHand = 0;
+                }
+                final Entry entry = mValues.get(mHand);
+                final BinaryPrefsFormat.LazyValue candidate = entry.get();
+                if (candidate != null && (candidate == value || candidate.mReferenced)) {
+                    candidate.mReferenced = false;
+                    mHand++;
+                    continue;
+                }
+                removeLocked(mHand);
+                if (candidate != null) {
+                    candidate.mCached = false;
+                    candidate.evict();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop counting values that were collected, and drop their entries once they make up
+     * half of the list.
+     */
+    @GuardedBy("this")
+    private void removeCollectedLocked() {
+        Entry entry;
+        while ((entry = (Entry) mCollected.poll()) != null) {
+            if (entry.accounted) {
+                entry.accounted = false;
+                mBytes -= entry.bytes;
+                mNumCollected++;
+            }
+        }
+        if (mNumCollected > mValues.size() / 2) {
+            for (int i = mValues.size() - 1; i >= 0; i--) {
+                if (!mValues.get(i).accounted) {
+                    removeLocked(i);
+                }
+            }
+            mHand = 0;
+        }
+    }
+
+    @GuardedBy("this")
+    private void removeLocked(int index) {
+        final Entry entry = mValues.get(index);
+        if (entry.accounted) {
+            entry.accounted = false;
+            mBytes -= entry.bytes;
+        } else {
+            mNumCollected--;
+        }
+        // Keeps the rest of the clock in order except for the entry moved into the gap
+        final Entry last = mValues.remove(mValues.size() - 1);
+        if (index < mValues.size()) {
+            mValues.set(index, last);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.kingja.pokonyan;
+
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * Streaming parser for preference files written by
+ * {@link com.android.internal.util.XmlUtils#writeMapXml}.
+ *
+ * Unlike {@link com.android.internal.util.XmlUtils#readMapXml} it puts every entry straight
+ * into a {@link PrefsMap}, so primitive values are never boxed. Only the tags a
+ * {@link SharedPreferencesImpl} writes are understood: {@code string}, {@code int},
+ * {@code long}, {@code float}, {@code boolean}, {@code set} and {@code null}.
+ *
+ * @hide
+ */
+final class PrefsXmlParser {
+    private PrefsXmlParser() {
+    }
+
+    static PrefsMap parse(InputStream in) throws XmlPullParserException, IOException {
+        final XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(in, StandardCharsets.UTF_8.name());
+
+        final PrefsMap map = new PrefsMap();
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.START_TAG) {
+            if (eventType == XmlPullParser.END_DOCUMENT) {
+                return map;
+            }
+            eventType = parser.next();
+        }
+        if (!"map".equals(parser.getName())) {
+            throw new XmlPullParserException("Expected <map>, got <" + parser.getName() + ">");
+        }
+
+        while ((eventType = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG) {
+                readEntry(parser, map);
+            } else if (eventType == XmlPullParser.END_TAG) {
+                // </map>, every entry consumes its own end tag
+                return map;
+            }
+        }
+        throw new XmlPullParserException("Document ended before </map>");
+    }
+
+    private static void readEntry(XmlPullParser parser, PrefsMap map)
+            throws XmlPullParserException, IOException {
+        final String tag = parser.getName();
+        final String key = parser.getAttributeValue(null, "name");
+        if (key == null) {
+            throw new XmlPullParserException("Missing name in <" + tag + ">");
+        }
+        switch (tag) {
+            case "string":
+                map.putString(key, parser.nextText());
+                return;
+            case "int":
+                map.putInt(key, Integer.parseInt(valueOf(parser)));
+                break;
+            case "long":
+                map.putLong(key, Long.parseLong(valueOf(parser)));
+                break;
+            case "float":
+                map.putFloat(key, Float.parseFloat(valueOf(parser)));
+                break;
+            case "boolean":
+                map.putBoolean(key, Boolean.parseBoolean(valueOf(parser)));
+                break;
+            case "null":
+                map.putNull(key);
+                break;
+            case "set":
+                map.putStringSet(key, readSet(parser));
+                return;
+            default:
+                throw new XmlPullParserException("Unexpected tag <" + tag + "> for " + key);
+        }
+        skipToEndTag(parser);
+    }
+
+    private static String valueOf(XmlPullParser parser) throws XmlPullParserException {
+        final String value = parser.getAttributeValue(null, "value");
+        if (value == null) {
+            throw new XmlPullParserException("Missing value in <" + parser.getName() + ">");
+        }
+        return value;
+    }
+
+    private static Set<String> readSet(XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        final ArrayList<String> values = new ArrayList<>();
+        int eventType;
+        while ((eventType = parser.next()) != XmlPullParser.END_TAG) {
+            if (eventType == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Document ended inside <set>");
+            }
+            if (eventType != XmlPullParser.START_TAG) {
+                continue;
+            }
+            if ("string".equals(parser.getName())) {
+                values.add(parser.nextText());
+            } else if ("null".equals(parser.getName())) {
+                values.add(null);
+                skipToEndTag(parser);
+            } else {
+                throw new XmlPullParserException("Unexpected tag <" + parser.getName()
+                        + "> in <set>");
+            }
+        }
+        return PrefsStringSet.copyOf(values);
+    }
+
+    private static void skipToEndTag(XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        int eventType;
+        while ((eventType = parser.next()) != XmlPullParser.END_TAG) {
+            if (eventType == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Document ended inside <"
+                        + parser.getName() + ">");
+            }
+        }
+    }
+}
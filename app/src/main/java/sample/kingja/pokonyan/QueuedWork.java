@@ -28,6 +28,7 @@ import android.util.Log;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.ExponentiallyBucketedHistogram;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 
 /**
@@ -80,7 +81,14 @@ public class QueuedWork {
 
     /** Work queued via {@link #queue} */
     @GuardedBy("sLock")
-    private static final LinkedList<Runnable> sWork = new LinkedList<>();
+    private static ArrayList<Runnable> sWork = new ArrayList<>();
+
+    /**
+     * Emptied list of already processed work, swapped in for {@link #sWork} so that queueing
+     * and processing work does not allocate in the steady state.
+     */
+    @GuardedBy("sLock")
+    private static ArrayList<Runnable> sSpareWork = new ArrayList<>();
 
     /** If new work can be delayed or not */
     @GuardedBy("sLock")
@@ -231,6 +239,25 @@ public class QueuedWork {
         }
     }
 
+    /**
+     * Queue a work-runnable to be processed no earlier than {@code delayMillis} from now,
+     * unless other work is processed first or {@link #waitToFinish} is running.
+     *
+     * @param work The new runnable to process
+     * @param delayMillis How long to delay processing
+     */
+    public static void queue(Runnable work, long delayMillis) {
+        Handler handler = getHandler();
+        synchronized (sLock) {
+            sWork.add(work);
+            if (sCanDelay) {
+                handler.sendEmptyMessageDelayed(QueuedWorkHandler.MSG_RUN, delayMillis);
+            } else {
+                handler.sendEmptyMessage(QueuedWorkHandler.MSG_RUN);
+            }
+        }
+    }
+
     /**
      * @return True iff there is any {@link #queue async work queued}.
      */
@@ -248,26 +275,35 @@ public class QueuedWork {
         }
 
         synchronized (sProcessingWork) {
-            LinkedList<Runnable> work;
+            final ArrayList<Runnable> work;
 
             synchronized (sLock) {
-                work = (LinkedList<Runnable>) sWork.clone();
-                sWork.clear();
+                //交换两个列表而不是clone，处理队列时不再分配内存
+                work = sWork;
+                // The spare is only missing if work processes pending work itself
+                sWork = sSpareWork != null ? sSpareWork : new ArrayList<>();
+                sSpareWork = null;
 
                 // Remove all msg-s as all work will be processed now
                 getHandler().removeMessages(QueuedWorkHandler.MSG_RUN);
             }
 
-            if (work.size() > 0) {
-                for (Runnable w : work) {
-                    w.run();
+            final int size = work.size();
+            if (size > 0) {
+                for (int i = 0; i < size; i++) {
+                    work.get(i).run();
                 }
 
                 if (DEBUG) {
-                    Log.d(LOG_TAG, "processing " + work.size() + " items took " +
+                    Log.d(LOG_TAG, "processing " + size + " items took " +
                             +(System.currentTimeMillis() - startTime) + " ms");
                 }
             }
+
+            work.clear();
+            synchronized (sLock) {
+                sSpareWork = work;
+            }
         }
     }
 
@@ -21,6 +21,7 @@ import android.annotation.UnsupportedAppUsage;
 import android.content.SharedPreferences;
 import android.os.FileUtils;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.StructStat;
@@ -43,7 +44,13 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -51,6 +58,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 final class SharedPreferencesImpl implements SharedPreferences {
     private static final String TAG = "SharedPreferencesImpl";
@@ -62,6 +72,52 @@ final class SharedPreferencesImpl implements SharedPreferences {
      */
     private static final long MAX_FSYNC_DURATION_MILLIS = 256;
 
+    /**
+     * If set, files are written in {@link BinaryPrefsFormat} instead of XML, and XML files are
+     * rewritten in that format right after they are first loaded. Reading detects the format
+     * of each file on its own, so this can be turned off again without losing data.
+     */
+    private static volatile boolean sUseBinaryFormat = false;
+
+    /**
+     * Files at least this large are mapped with {@link FileChannel#map} and decoded straight
+     * from the mapping instead of being read through a buffered stream.
+     */
+    private static volatile long sMmapThresholdBytes = 128 * 1024;
+
+    /**
+     * If set, binary files are only indexed when loaded and each string or string set is
+     * decoded on first access. See {@link BinaryPrefsFormat#readIndex}. Files are then always
+     * mapped, whatever {@link #sMmapThresholdBytes} says.
+     */
+    private static volatile boolean sLazyDecoding = false;
+
+    /**
+     * If non-null, decoded XML files are cached here as {@link PrefsSnapshotCache snapshots},
+     * so the next process can skip parsing files that did not change.
+     */
+    private static volatile File sSnapshotDir = null;
+
+    /**
+     * If non-null, keys and strings are deduplicated across all preference files through this
+     * pool when they are loaded or committed.
+     */
+    private static volatile PrefsStringPool sStringPool = null;
+
+    /**
+     * If non-null, binary files and snapshots are always mapped and loaded lazily, and the heap
+     * taken by their decoded strings and string sets is bounded by this cache. Values beyond
+     * the budget are decoded from the mapping again when next read.
+     */
+    private static volatile PrefsValueCache sValueCache = null;
+
+    /**
+     * If positive, apply() calls within this many milliseconds of the one that queued the
+     * write share its memory state generation, and the write is delayed by as much so the
+     * whole burst is written once.
+     */
+    private static volatile long sApplyCoalesceWindowMillis = 0;
+
     // Lock ordering rules:
     //  - acquire SharedPreferencesImpl.mLock before EditorImpl.mLock
     //  - acquire mWritingToDiskLock before EditorImpl.mLock
@@ -73,17 +129,84 @@ final class SharedPreferencesImpl implements SharedPreferences {
     private final Object mLock = new Object();
     private final Object mWritingToDiskLock = new Object();
 
+    /** Queued on {@link SharedPreferencesLoader} for every (re)load of this file */
+    private final Runnable mLoadRunnable = new Runnable() {
+        public void run() {
+            //从磁盘加载到内存 .xml->Map
+            loadFromDisk();
+        }
+    };
+
     @GuardedBy("mLock")
-    private Map<String, Object> mMap;
+    private PrefsMap mMap;
+
+    /**
+     * {@link #mMap} once loaded, otherwise {@code null}. Published maps are never modified, so
+     * getters read this without taking {@link #mLock}.
+     */
+    private volatile PrefsMap mSnapshot;
     @GuardedBy("mLock")
     private Throwable mThrowable;
 
     @GuardedBy("mLock")
     private int mDiskWritesInFlight = 0;
 
+    // All apply() calls share one queued write and one finisher instead of each allocating a
+    // result with a latch and three runnables. Generations take the place of the latches.
+
+    /** Writes the latest state on behalf of all apply() calls since it was queued */
+    private final Runnable mApplyWriter = this::writeApplied;
+
+    /** Waits until the latest apply() was written, for {@link QueuedWork#waitToFinish} */
+    private final Runnable mApplyFinisher = this::awaitApplied;
+
+    @GuardedBy("mLock")
+    private boolean mApplyWriteQueued;
+
+    @GuardedBy("mLock")
+    private boolean mApplyFinisherAdded;
+
+    /** Latest memory state generation committed by apply() */
+    @GuardedBy("mLock")
+    private long mApplyGeneration;
+
+    /** When {@link #mApplyWriter} was last queued, see {@link #sApplyCoalesceWindowMillis} */
+    @GuardedBy("mLock")
+    private long mApplyQueuedMillis;
+
+    /** Latest generation {@link #mApplyWriter} wrote, or found superseded */
+    @GuardedBy("mLock")
+    private long mApplyWrittenGeneration;
+
     @GuardedBy("mLock")
     private boolean mLoaded = false;
 
+    /** Load instrumentation, see {@link #getLoadStats} */
+    @GuardedBy("mLock")
+    private long mLoadQueuedNanos;
+    @GuardedBy("mLock")
+    private long mLoadQueueNanos;
+    @GuardedBy("mLock")
+    private long mLoadWallNanos;
+    @GuardedBy("mLock")
+    private long mLoadParseNanos;
+    @GuardedBy("mLock")
+    private long mBlockedNanos;
+    @GuardedBy("mLock")
+    private int mNumBlocked;
+
+    /** Registered through {@link #whenLoaded} while the file was not loaded yet */
+    @GuardedBy("mLock")
+    private ArrayList<Runnable> mLoadedCallbacks;
+
+    /** Pool this file's strings were deduplicated through at its last load, if any */
+    @GuardedBy("mLock")
+    private PrefsStringPool mDedupPool;
+
+    /** What that load contributed to {@link PrefsStringPool#getBytesSaved} */
+    @GuardedBy("mLock")
+    private long mDedupBytesSaved;
+
     @GuardedBy("mLock")
     private StructTimespec mStatTimestamp;
 
@@ -106,6 +229,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
     @GuardedBy("mWritingToDiskLock")
     private long mDiskStateGeneration;
 
+    /** Files of {@link SharedPreferencesTransaction transactions} waiting for this file */
+    @GuardedBy("mWritingToDiskLock")
+    private ArrayList<SharedPreferencesTransaction.Entry> mPendingTransactions;
+
     /**
      * Time (and number of instances) of file-system sync requests
      */
@@ -126,21 +253,107 @@ final class SharedPreferencesImpl implements SharedPreferences {
         startLoadFromDisk();
     }
 
+    /**
+     * Opt in to (or out of) the {@link BinaryPrefsFormat binary on-disk format} for all
+     * preference files of this process. Should be called before the first preferences are
+     * loaded.
+     */
+    static void setUseBinaryFormat(boolean useBinaryFormat) {
+        sUseBinaryFormat = useBinaryFormat;
+    }
+
+    /**
+     * Set the file size from which {@link #loadFromDisk} memory-maps the file. Use
+     * {@link Long#MAX_VALUE} to always read through a stream.
+     */
+    static void setMmapThreshold(long bytes) {
+        sMmapThresholdBytes = bytes;
+    }
+
+    /**
+     * Opt in to (or out of) lazily decoding values of binary preference files.
+     */
+    static void setLazyDecoding(boolean lazyDecoding) {
+        sLazyDecoding = lazyDecoding;
+    }
+
+    /**
+     * Set the directory for {@link PrefsSnapshotCache snapshots} of XML files, or {@code null}
+     * to not use snapshots. Snapshots are not used while the binary format is enabled.
+     */
+    static void setSnapshotDir(@Nullable File dir) {
+        sSnapshotDir = dir;
+    }
+
+    /**
+     * Opt in to (or out of) deduplicating keys and strings across preference files. Only
+     * affects files loaded and edits committed afterwards.
+     */
+    static void setStringDedup(boolean enabled) {
+        synchronized (SharedPreferencesImpl.class) {
+            if (!enabled) {
+                sStringPool = null;
+            } else if (sStringPool == null) {
+                sStringPool = new PrefsStringPool();
+            }
+        }
+    }
+
+    /**
+     * @return an estimate of the bytes saved by deduplicating strings, 0 if deduplication is
+     *         off. See {@link PrefsStringPool#getBytesSaved}.
+     */
+    static long getStringDedupBytesSaved() {
+        final PrefsStringPool pool = sStringPool;
+        return pool != null ? pool.getBytesSaved() : 0;
+    }
+
+    /**
+     * Bound the heap taken by decoded strings and string sets of all preference files loaded
+     * from now on to about {@code budgetBytes}, or pass 0 to keep every decoded value. Only
+     * files in the binary format, or XML files with a {@link #setSnapshotDir snapshot}, are
+     * loaded this way; other XML files stay fully in memory until rewritten in binary.
+     */
+    static void setMemoryBudget(long budgetBytes) {
+        sValueCache = budgetBytes > 0 ? new PrefsValueCache(budgetBytes) : null;
+    }
+
+    /**
+     * Coalesce apply() calls that arrive within {@code windowMillis} of each other into one
+     * memory state generation and one disk write, or pass 0 to write each one on its own.
+     */
+    static void setApplyCoalesceWindow(long windowMillis) {
+        sApplyCoalesceWindowMillis = windowMillis;
+    }
+
+    static boolean usesBinaryFormat() {
+        return sUseBinaryFormat;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    @Nullable
+    private PrefsSnapshotCache getSnapshotCache() {
+        final File dir = sSnapshotDir;
+        return dir != null && !sUseBinaryFormat ? new PrefsSnapshotCache(dir, mFile) : null;
+    }
+
     @UnsupportedAppUsage
     private void startLoadFromDisk() {
         //设置mLoad为false表示，xml文件还没加载
         synchronized (mLock) {
             mLoaded = false;
+            mSnapshot = null;
+            mLoadQueuedNanos = System.nanoTime();
         }
-        new Thread("SharedPreferencesImpl-load") {
-            public void run() {
-                //从磁盘加载到内存 .xml->Map
-                loadFromDisk();
-            }
-        }.start();
+        //交给共享的加载线程池，而不是每个文件新建一个线程
+        SharedPreferencesLoader.queue(mLoadRunnable);
     }
 
     private void loadFromDisk() {
+        final long startTime = System.nanoTime();
         synchronized (mLock) {
             //如果已经加载好了就跳出避免重复加载
             if (mLoaded) {
@@ -152,39 +365,112 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 mBackupFile.renameTo(mFile);
             }
         }
+        //事务提交后进程死掉的话，先按日志补写各个文件
+        SharedPreferencesTransaction.recover(mFile.getParentFile());
         // Debugging
         if (mFile.exists() && !mFile.canRead()) {
             Log.w(TAG, "Attempt to read preferences file " + mFile + " without permission");
         }
-        Map<String, Object> map = null;
+        PrefsMap map = null;
         StructStat stat = null;
         Throwable thrown = null;
+        boolean parsedXml = false;
+        final PrefsSnapshotCache snapshot = getSnapshotCache();
+        long parseStartTime = 0;
+        long parseEndTime = 0;
+        final PrefsValueCache valueCache = sValueCache;
+        final PrefsStringPool pool = sStringPool;
+        long dedupBytes = 0;
+        // Lazily decoded values are decoded from the mapping on demand. A file read into the
+        // heap instead would stay there whole for as long as any of its values is referenced.
+        //懒加载时总是映射文件，否则整个文件的byte[]会被所有LazyValue一直引用
+        final long mmapThreshold = valueCache != null || sLazyDecoding ? 0 : sMmapThresholdBytes;
         try {
             stat = Os.stat(mFile.getPath());
-            if (mFile.canRead()) {
+            parseStartTime = System.nanoTime();
+            if (snapshot != null) {
+                final ByteBuffer buf = snapshot.read(stat, mmapThreshold);
+                if (buf != null) {
+                    //文件自上次快照后没有变过，直接解码快照，跳过xml解析
+                    try {
+                        map = decodeBinary(buf, valueCache);
+                    } catch (IOException | RuntimeException e) {
+                        Log.w(TAG, "Cannot decode snapshot of " + mFile, e);
+                    }
+                }
+            }
+            if (map == null && mFile.canRead()) {
+                FileInputStream in = null;
                 BufferedInputStream str = null;
                 try {
-                    str = new BufferedInputStream(
-                            new FileInputStream(mFile), 16 * 1024);
-                    //把sp的xml文件解析到map
-                    map = (Map<String, Object>) XmlUtils.readMapXml(str);
+                    in = new FileInputStream(mFile);
+                    // The file may have been replaced or resized since the stat above. Map it
+                    // and remember its size as it was opened, or reads past its end fault.
+                    //以打开的文件为准，映射长度和mStatSize都用fstat的结果
+                    stat = Os.fstat(in.getFD());
+                    if (stat.st_size >= mmapThreshold) {
+                        //大文件直接映射到内存，省去逐块read和拷贝到堆上
+                        final MappedByteBuffer buf = in.getChannel().map(
+                                FileChannel.MapMode.READ_ONLY, 0, stat.st_size);
+                        if (BinaryPrefsFormat.isBinary(buf)) {
+                            map = decodeBinary(buf, valueCache);
+                        } else {
+                            map = PrefsXmlParser.parse(new ByteBufferInputStream(buf));
+                            parsedXml = true;
+                        }
+                    } else {
+                        str = new BufferedInputStream(in, 16 * 1024);
+                        if (BinaryPrefsFormat.isBinary(str)) {
+                            //二进制格式，直接按类型解码
+                            // Sized by what was opened, the file may have been replaced since
+                            map = decodeBinary(BinaryPrefsFormat.readBuffer(str,
+                                    in.getChannel().size()), valueCache);
+                        } else {
+                            //把sp的xml文件边解析边按类型存入map，不装箱
+                            map = PrefsXmlParser.parse(str);
+                            parsedXml = true;
+                        }
+                    }
                 } catch (Exception e) {
                     Log.w(TAG, "Cannot read " + mFile.getAbsolutePath(), e);
                 } finally {
                     IoUtils.closeQuietly(str);
+                    IoUtils.closeQuietly(in);
                 }
             }
+            if (map != null && pool != null) {
+                //与其它sp文件共享相同的key和字符串值
+                dedupBytes = map.internStrings(pool);
+            }
+            parseEndTime = System.nanoTime();
         } catch (ErrnoException e) {
             // An errno exception means the stat failed. Treat as empty/non-existing by
             // ignoring.
         } catch (Throwable t) {
             thrown = t;
+        } finally {
+            if (parseStartTime != 0 && parseEndTime == 0) {
+                // Parsing failed, count the time spent until then
+                parseEndTime = System.nanoTime();
+            }
         }
 
+        boolean takeSnapshot = false;
+        final ArrayList<Runnable> loadedCallbacks;
         synchronized (mLock) {
             //标示设为已经加载
             mLoaded = true;
             mThrowable = thrown;
+            final long endTime = System.nanoTime();
+            mLoadQueueNanos = startTime - mLoadQueuedNanos;
+            mLoadWallNanos = endTime - startTime;
+            mLoadParseNanos = parseEndTime - parseStartTime;
+            if (DEBUG) {
+                Log.d(TAG, mFile.getName() + ": loaded after "
+                        + (mLoadQueueNanos / 1000000) + " ms in queue, "
+                        + (mLoadWallNanos / 1000000) + " ms total, "
+                        + (mLoadParseNanos / 1000000) + " ms parsing");
+            }
             try {
                 if (thrown == null) {
                     if (map != null) {
@@ -192,8 +478,19 @@ final class SharedPreferencesImpl implements SharedPreferences {
                         mMap = map;
                         mStatTimestamp = stat.st_mtim;
                         mStatSize = stat.st_size;
+                        takeSnapshot = parsedXml && snapshot != null;
                     } else {
-                        mMap = new HashMap<>();
+                        mMap = new PrefsMap();
+                    }
+                    mSnapshot = mMap;
+                    //只按最近一次加载计入节省的字节数，重新加载不会重复累加
+                    if (mDedupPool != null) {
+                        mDedupPool.addBytesSaved(-mDedupBytesSaved);
+                    }
+                    mDedupPool = pool;
+                    mDedupBytesSaved = dedupBytes;
+                    if (pool != null) {
+                        pool.addBytesSaved(dedupBytes);
                     }
                 }
             } catch (Throwable t) {
@@ -201,7 +498,88 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 mThrowable = t;
             } finally {
                 mLock.notifyAll();
+                loadedCallbacks = mLoadedCallbacks;
+                mLoadedCallbacks = null;
+            }
+        }
+
+        if (loadedCallbacks != null) {
+            //回调可能阻塞等待其它文件加载，不能占用加载线程
+            SharedPreferencesLoader.dispatch(() -> {
+                for (int i = 0; i < loadedCallbacks.size(); i++) {
+                    loadedCallbacks.get(i).run();
+                }
+            });
+        }
+
+        if (takeSnapshot) {
+            snapshot.write(map, stat);
+        }
+
+        if (parsedXml && sUseBinaryFormat && thrown == null) {
+            //旧的xml文件，加载后立即以二进制格式重写一次
+            rewriteToDisk();
+        }
+    }
+
+    private static PrefsMap decodeBinary(ByteBuffer buf, @Nullable PrefsValueCache valueCache)
+            throws IOException {
+        //懒加载模式只建立key->偏移量的索引，值在第一次get时才解码
+        //有内存预算时也走索引模式，解码后的值超出预算会被淘汰，下次读取再从映射中解码
+        if (valueCache != null || sLazyDecoding) {
+            return BinaryPrefsFormat.readIndex(buf, valueCache);
+        }
+        return BinaryPrefsFormat.readMap(buf);
+    }
+
+    /**
+     * Write the current memory state to disk again even though nothing changed, e.g. to
+     * migrate a file to the {@link BinaryPrefsFormat binary format}. Queued like apply(), so
+     * a loader thread calling this does not wait for the write.
+     */
+    private void rewriteToDisk() {
+        synchronized (mLock) {
+            if (mThrowable != null) {
+                return;
             }
+            //和apply()一样交给QueuedWork写，不占用加载线程
+            mCurrentMemoryStateGeneration++;
+            scheduleApplyWriteLocked();
+        }
+    }
+
+    /**
+     * Feeds a (mapped) buffer to parsers that only accept an {@link InputStream}, without
+     * copying it first.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            mBuf = buf;
+        }
+
+        @Override
+        public int read() {
+            return mBuf.hasRemaining() ? mBuf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!mBuf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, mBuf.remaining());
+            mBuf.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return mBuf.remaining();
         }
     }
 
@@ -243,115 +621,711 @@ final class SharedPreferencesImpl implements SharedPreferences {
             return true;
         }
 
-        synchronized (mLock) {
-            return !stat.st_mtim.equals(mStatTimestamp) || mStatSize != stat.st_size;
-        }
+        synchronized (mLock) {
+            return !stat.st_mtim.equals(mStatTimestamp) || mStatSize != stat.st_size;
+        }
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (mLock) {
+            mListeners.put(listener, CONTENT);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (mLock) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * @return true once the file has been loaded from disk
+     */
+    boolean isLoaded() {
+        synchronized (mLock) {
+            return mLoaded;
+        }
+    }
+
+    /**
+     * Block until the file has been loaded from disk.
+     */
+    void awaitLoaded() {
+        synchronized (mLock) {
+            awaitLoadedLocked();
+        }
+    }
+
+    /**
+     * @return the current state, waiting for it to be loaded first if needed
+     */
+    private PrefsMap getLoadedMap() {
+        final PrefsMap map = mSnapshot;
+        if (map != null) {
+            return map;
+        }
+        synchronized (mLock) {
+            awaitLoadedLocked();
+            return mMap;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void awaitLoadedLocked() {
+        if (!mLoaded) {
+            // Raise an explicit StrictMode onReadFromDisk for this
+            // thread, since the real read will be in a different
+            // thread and otherwise ignored by StrictMode.
+            BlockGuard.getThreadPolicy().onReadFromDisk();
+            // Somebody is waiting for this file, load it before files nobody needs yet.
+            SharedPreferencesLoader.promote(mLoadRunnable);
+
+            final long startTime = System.nanoTime();
+            while (!mLoaded) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException unused) {
+                }
+            }
+            mBlockedNanos += System.nanoTime() - startTime;
+            mNumBlocked++;
+        }
+        if (mThrowable != null) {
+            throw new IllegalStateException(mThrowable);
+        }
+    }
+
+    /**
+     * @return how long loading this file took and how much it held up callers
+     */
+    public LoadStats getLoadStats() {
+        synchronized (mLock) {
+            return new LoadStats(mLoaded, mLoadQueueNanos / 1000, mLoadWallNanos / 1000,
+                    mLoadParseNanos / 1000, mLoaded ? mStatSize : 0,
+                    mLoaded && mMap != null ? mMap.size() : 0,
+                    mBlockedNanos / 1000, mNumBlocked);
+        }
+    }
+
+    /**
+     * Instrumentation of the most recent load of a preferences file, see
+     * {@link #getLoadStats}. Times are in microseconds.
+     */
+    public static final class LoadStats {
+        /** Whether the file was loaded; if not, the load figures are from an earlier load */
+        public final boolean loaded;
+        /** Time the load waited for a {@link SharedPreferencesLoader loader thread} */
+        public final long queueMicros;
+        /** Time from the start of the load until the contents were available */
+        public final long loadMicros;
+        /** Part of {@link #loadMicros} spent reading and decoding the contents */
+        public final long parseMicros;
+        /** Size of the file as of the last load or write */
+        public final long fileSize;
+        /** Number of keys currently held */
+        public final int keyCount;
+        /** Total time callers were blocked waiting for this file to load */
+        public final long blockedMicros;
+        /** Number of calls that had to wait for this file to load */
+        public final int blockedCallers;
+
+        LoadStats(boolean loaded, long queueMicros, long loadMicros, long parseMicros,
+                long fileSize, int keyCount, long blockedMicros, int blockedCallers) {
+            this.loaded = loaded;
+            this.queueMicros = queueMicros;
+            this.loadMicros = loadMicros;
+            this.parseMicros = parseMicros;
+            this.fileSize = fileSize;
+            this.keyCount = keyCount;
+            this.blockedMicros = blockedMicros;
+            this.blockedCallers = blockedCallers;
+        }
+
+        @Override
+        public String toString() {
+            return "LoadStats{loaded=" + loaded + ", queue=" + queueMicros + "us, load="
+                    + loadMicros + "us, parse=" + parseMicros + "us, size=" + fileSize
+                    + ", keys=" + keyCount + ", blocked=" + blockedMicros + "us in "
+                    + blockedCallers + " calls}";
+        }
+    }
+
+    /**
+     * Run {@code action} on {@code executor} once this file has been loaded, without blocking
+     * the calling thread. If the file is already loaded the action is handed to the executor
+     * right away, otherwise it is handed over from a callback thread shared by all files, never
+     * from a loader thread. An executor that runs actions inline runs them on that thread, so
+     * long-running actions delay the callbacks of other files.
+     */
+    public void whenLoaded(Executor executor, Runnable action) {
+        synchronized (mLock) {
+            if (!mLoaded) {
+                if (mLoadedCallbacks == null) {
+                    mLoadedCallbacks = new ArrayList<>();
+                }
+                mLoadedCallbacks.add(() -> executor.execute(action));
+                return;
+            }
+        }
+        executor.execute(action);
+    }
+
+    // Non-blocking variants of the getters: the value is delivered to the callback on the
+    // executor once the file is loaded, so callers can show defaults in the meantime. If
+    // loading failed, the getter throws on the executor's thread.
+
+    public void getStringAsync(String key, @Nullable String defValue, Executor executor,
+            Consumer<String> callback) {
+        whenLoaded(executor, () -> callback.accept(getString(key, defValue)));
+    }
+
+    public void getStringSetAsync(String key, @Nullable Set<String> defValues,
+            Executor executor, Consumer<Set<String>> callback) {
+        whenLoaded(executor, () -> callback.accept(getStringSet(key, defValues)));
+    }
+
+    public void getIntAsync(String key, int defValue, Executor executor,
+            Consumer<Integer> callback) {
+        whenLoaded(executor, () -> callback.accept(getInt(key, defValue)));
+    }
+
+    public void getLongAsync(String key, long defValue, Executor executor,
+            Consumer<Long> callback) {
+        whenLoaded(executor, () -> callback.accept(getLong(key, defValue)));
+    }
+
+    public void getFloatAsync(String key, float defValue, Executor executor,
+            Consumer<Float> callback) {
+        whenLoaded(executor, () -> callback.accept(getFloat(key, defValue)));
+    }
+
+    public void getBooleanAsync(String key, boolean defValue, Executor executor,
+            Consumer<Boolean> callback) {
+        whenLoaded(executor, () -> callback.accept(getBoolean(key, defValue)));
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        // The published map never changes, so a read-only view of it is a consistent
+        // snapshot that costs nothing to take
+        //不再拷贝整个map，直接返回不可变快照的只读视图
+        return getLoadedMap().readOnlyView();
+    }
+
+    @Override
+    @Nullable
+    public String getString(String key, @Nullable String defValue) {
+        return getLoadedMap().getString(key, defValue);
+    }
+
+    @Override
+    @Nullable
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        return getLoadedMap().getStringSet(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return getLoadedMap().getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return getLoadedMap().getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return getLoadedMap().getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return getLoadedMap().getBoolean(key, defValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return getLoadedMap().containsKey(key);
+    }
+
+    /**
+     * Check that this file holds no value of another type under the name of {@code key}, so
+     * that reads through the key cannot throw {@link ClassCastException} later. Waits for the
+     * file to be loaded.
+     *
+     * @return {@code key}, for use in field initializers
+     * @throws IllegalArgumentException if the stored value has a different type
+     */
+    public <T> PrefKey<T> declareKey(PrefKey<T> key) {
+        final PrefsMap map = getLoadedMap();
+        final int slot = key.slotIn(map);
+        if (slot >= 0) {
+            final byte type = map.typeAt(slot);
+            if (type != key.type && type != BinaryPrefsFormat.TYPE_NULL) {
+                throw new IllegalArgumentException(key.name + " holds a "
+                        + map.valueAt(slot).getClass().getName() + ", not the type of " + key);
+            }
+        }
+        return key;
+    }
+
+    // Getters taking a declared key. The key remembers its slot, so as long as no key was
+    // added or removed since its last use, a read is a few array loads.
+    //通过PrefKey缓存的槽位直接读取，省去hashCode/equals和装箱
+
+    public <T> T get(PrefKey<T> key) {
+        return get(key, getLoadedMap());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T get(PrefKey<T> key, PrefsMap map) {
+        final int slot = key.slotIn(map);
+        if (slot < 0 || map.typeAt(slot) == BinaryPrefsFormat.TYPE_NULL) {
+            return key.getDefaultValue();
+        }
+        switch (key.type) {
+            case BinaryPrefsFormat.TYPE_INT:
+                return (T) Integer.valueOf(map.getIntAt(slot, 0));
+            case BinaryPrefsFormat.TYPE_LONG:
+                return (T) Long.valueOf(map.getLongAt(slot, 0));
+            case BinaryPrefsFormat.TYPE_FLOAT:
+                return (T) Float.valueOf(map.getFloatAt(slot, 0));
+            case BinaryPrefsFormat.TYPE_BOOLEAN:
+                return (T) Boolean.valueOf(map.getBooleanAt(slot, false));
+            case BinaryPrefsFormat.TYPE_STRING:
+                return (T) map.getStringAt(slot, null);
+            default:
+                return (T) map.getStringSetAt(slot, null);
+        }
+    }
+
+    @Nullable
+    public String getString(PrefKey<String> key) {
+        final PrefsMap map = getLoadedMap();
+        return map.getStringAt(key.slotIn(map), (String) key.defRef);
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(PrefKey<Set<String>> key) {
+        final PrefsMap map = getLoadedMap();
+        return map.getStringSetAt(key.slotIn(map), (Set<String>) key.defRef);
+    }
+
+    public int getInt(PrefKey<Integer> key) {
+        final PrefsMap map = getLoadedMap();
+        return map.getIntAt(key.slotIn(map), (int) key.defBits);
+    }
+
+    public long getLong(PrefKey<Long> key) {
+        final PrefsMap map = getLoadedMap();
+        return map.getLongAt(key.slotIn(map), key.defBits);
+    }
+
+    public float getFloat(PrefKey<Float> key) {
+        final PrefsMap map = getLoadedMap();
+        return map.getFloatAt(key.slotIn(map), Float.intBitsToFloat((int) key.defBits));
+    }
+
+    public boolean getBoolean(PrefKey<Boolean> key) {
+        final PrefsMap map = getLoadedMap();
+        return map.getBooleanAt(key.slotIn(map), key.defBits != 0);
+    }
+
+    public boolean contains(PrefKey<?> key) {
+        return key.slotIn(getLoadedMap()) >= 0;
+    }
+
+    /**
+     * @return the keys starting with {@code prefix}, in sorted order, as of the current state.
+     *         The list is a read-only view that is not copied per key.
+     */
+    public List<String> keysWithPrefix(String prefix) {
+        final String[] keys = getSortedKeys();
+        final int from = lowerBound(keys, 0, prefix);
+        // Keys with the prefix are contiguous from there on
+        int lo = from;
+        int hi = keys.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (keys[mid].startsWith(prefix)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return Collections.unmodifiableList(Arrays.asList(keys).subList(from, lo));
+    }
+
+    /**
+     * Pass the keys {@code k} with {@code from <= k < to} to {@code consumer}, in sorted order,
+     * as of the current state. A {@code null} bound is open.
+     */
+    public void forEachInRange(@Nullable String from, @Nullable String to,
+            Consumer<String> consumer) {
+        final String[] keys = getSortedKeys();
+        final int start = from != null ? lowerBound(keys, 0, from) : 0;
+        final int end = to != null ? lowerBound(keys, start, to) : keys.length;
+        for (int i = start; i < end; i++) {
+            consumer.accept(keys[i]);
+        }
+    }
+
+    /**
+     * @return the index of the first of {@code keys} at or after {@code from} that is not less
+     *         than {@code key}
+     */
+    private static int lowerBound(String[] keys, int from, String key) {
+        int lo = from;
+        int hi = keys.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the sorted keys of the current state. The first call builds the sorted index;
+     *         from then on {@link EditorImpl#commitToMemory} keeps it up to date.
+     */
+    private String[] getSortedKeys() {
+        final String[] keys = getLoadedMap().sortedKeys();
+        if (keys != null) {
+            return keys;
+        }
+        synchronized (mLock) {
+            awaitLoadedLocked();
+            return mMap.buildSortedKeys();
+        }
+    }
+
+    /**
+     * Read several related values from one state of this file. All reads through the
+     * {@link Reader} see the same state, even if edits are committed concurrently, and only
+     * the first of them may wait for the file to load.
+     * <pre>
+     *   prefs.read(r -&gt; {
+     *       width = r.getInt("width", 0);
+     *       height = r.getInt("height", 0);
+     *   });
+     * </pre>
+     */
+    public void read(Consumer<Reader> reader) {
+        reader.accept(new Reader(getLoadedMap()));
+    }
+
+    /**
+     * @return the values of {@code keys} that are present, all from the same state of this
+     *         file. Missing keys are left out.
+     */
+    public Map<String, Object> read(String... keys) {
+        final PrefsMap map = getLoadedMap();
+        final HashMap<String, Object> values = new HashMap<>(keys.length * 4 / 3 + 1);
+        for (String key : keys) {
+            final int slot = map.indexOf(key);
+            if (slot >= 0) {
+                values.put(key, map.valueAt(slot));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Getters over one state of a preferences file, see {@link #read(Consumer)}. Edits
+     * committed after the reader was created are not visible through it.
+     */
+    public static final class Reader {
+        private final PrefsMap mMap;
+
+        Reader(PrefsMap map) {
+            mMap = map;
+        }
+
+        @Nullable
+        public String getString(String key, @Nullable String defValue) {
+            return mMap.getString(key, defValue);
+        }
+
+        @Nullable
+        public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+            return mMap.getStringSet(key, defValues);
+        }
+
+        public int getInt(String key, int defValue) {
+            return mMap.getInt(key, defValue);
+        }
+
+        public long getLong(String key, long defValue) {
+            return mMap.getLong(key, defValue);
+        }
+
+        public float getFloat(String key, float defValue) {
+            return mMap.getFloat(key, defValue);
+        }
+
+        public boolean getBoolean(String key, boolean defValue) {
+            return mMap.getBoolean(key, defValue);
+        }
+
+        public boolean contains(String key) {
+            return mMap.containsKey(key);
+        }
+
+        @Nullable
+        public String getString(PrefKey<String> key) {
+            return mMap.getStringAt(key.slotIn(mMap), (String) key.defRef);
+        }
+
+        @Nullable
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(PrefKey<Set<String>> key) {
+            return mMap.getStringSetAt(key.slotIn(mMap), (Set<String>) key.defRef);
+        }
+
+        public int getInt(PrefKey<Integer> key) {
+            return mMap.getIntAt(key.slotIn(mMap), (int) key.defBits);
+        }
+
+        public long getLong(PrefKey<Long> key) {
+            return mMap.getLongAt(key.slotIn(mMap), key.defBits);
+        }
+
+        public float getFloat(PrefKey<Float> key) {
+            return mMap.getFloatAt(key.slotIn(mMap), Float.intBitsToFloat((int) key.defBits));
+        }
+
+        public boolean getBoolean(PrefKey<Boolean> key) {
+            return mMap.getBooleanAt(key.slotIn(mMap), key.defBits != 0);
+        }
+    }
+
+    // Single mutations that skip the editor: no Editor, no modifications map and one pass
+    // through mLock. Persisted like apply(), and listeners are notified the same way.
+    //单个修改直接作用于内存状态，不创建Editor，写盘方式与apply()相同
+
+    public void putStringAndApply(String key, @Nullable String value) {
+        applySingle(key, value != null ? BinaryPrefsFormat.TYPE_STRING : PrefsMap.TYPE_REMOVE,
+                0, value);
+    }
+
+    public void putStringSetAndApply(String key, @Nullable Set<String> values) {
+        applySingle(key, values != null
+                ? BinaryPrefsFormat.TYPE_STRING_SET : PrefsMap.TYPE_REMOVE, 0, values);
     }
 
-    @Override
-    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
-        synchronized (mLock) {
-            mListeners.put(listener, CONTENT);
-        }
+    public void putIntAndApply(String key, int value) {
+        applySingle(key, BinaryPrefsFormat.TYPE_INT, value, null);
     }
 
-    @Override
-    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
-        synchronized (mLock) {
-            mListeners.remove(listener);
-        }
+    public void putLongAndApply(String key, long value) {
+        applySingle(key, BinaryPrefsFormat.TYPE_LONG, value, null);
     }
 
-    @GuardedBy("mLock")
-    private void awaitLoadedLocked() {
-        if (!mLoaded) {
-            // Raise an explicit StrictMode onReadFromDisk for this
-            // thread, since the real read will be in a different
-            // thread and otherwise ignored by StrictMode.
-            BlockGuard.getThreadPolicy().onReadFromDisk();
-        }
-        while (!mLoaded) {
-            try {
-                mLock.wait();
-            } catch (InterruptedException unused) {
-            }
-        }
-        if (mThrowable != null) {
-            throw new IllegalStateException(mThrowable);
-        }
+    public void putFloatAndApply(String key, float value) {
+        applySingle(key, BinaryPrefsFormat.TYPE_FLOAT, Float.floatToIntBits(value), null);
     }
 
-    @Override
-    public Map<String, ?> getAll() {
-        synchronized (mLock) {
-            awaitLoadedLocked();
-            //noinspection unchecked
-            return new HashMap<String, Object>(mMap);
-        }
+    public void putBooleanAndApply(String key, boolean value) {
+        applySingle(key, BinaryPrefsFormat.TYPE_BOOLEAN, value ? 1 : 0, null);
     }
 
-    @Override
-    @Nullable
-    public String getString(String key, @Nullable String defValue) {
+    public void removeAndApply(String key) {
+        applySingle(key, PrefsMap.TYPE_REMOVE, 0, null);
+    }
+
+    /**
+     * Commit one modification to memory and schedule the write like
+     * {@link EditorImpl#apply()} does.
+     *
+     * @param type {@link PrefsMap#TYPE_REMOVE} or the type of the value in {@code bits} or
+     *             {@code ref}
+     */
+    @SuppressWarnings("unchecked")
+    private void applySingle(String key, byte type, long bits, @Nullable Object ref) {
+        final PrefsStringPool pool = sStringPool;
+        if (pool != null) {
+            key = pool.intern(key);
+            if (type == BinaryPrefsFormat.TYPE_STRING) {
+                ref = pool.intern((String) ref);
+            }
+        }
+        final MemoryCommitResult mcr;
         synchronized (mLock) {
             awaitLoadedLocked();
-            String v = (String) mMap.get(key);
-            return v != null ? v : defValue;
+            final PrefsMap map = new PrefsMap(mMap);
+            final boolean changed;
+            switch (type) {
+                case PrefsMap.TYPE_REMOVE:
+                    changed = map.delete(key);
+                    break;
+                case BinaryPrefsFormat.TYPE_INT:
+                    changed = map.putInt(key, (int) bits);
+                    break;
+                case BinaryPrefsFormat.TYPE_LONG:
+                    changed = map.putLong(key, bits);
+                    break;
+                case BinaryPrefsFormat.TYPE_FLOAT:
+                    changed = map.putFloat(key, Float.intBitsToFloat((int) bits));
+                    break;
+                case BinaryPrefsFormat.TYPE_BOOLEAN:
+                    changed = map.putBoolean(key, bits != 0);
+                    break;
+                case BinaryPrefsFormat.TYPE_STRING:
+                    changed = map.putString(key, (String) ref);
+                    break;
+                default:
+                    changed = map.putStringSet(key, (Set<String>) ref);
+                    break;
+            }
+            mcr = applySingleLocked(key, map, changed);
+        }
+        if (mcr != null) {
+            notifyListeners(mcr);
         }
     }
 
-    @Override
+    /**
+     * Publish {@code next}, a copy of {@link #mMap} in which only {@code key} was modified,
+     * and schedule the write like {@link EditorImpl#apply()} does.
+     *
+     * @param changed whether {@code next} differs from the current state at all
+     * @return the result to notify listeners with, or {@code null} if there are none
+     */
+    @GuardedBy("mLock")
     @Nullable
-    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
-        synchronized (mLock) {
-            awaitLoadedLocked();
-            Set<String> v = (Set<String>) mMap.get(key);
-            return v != null ? v : defValues;
+    private MemoryCommitResult applySingleLocked(String key, PrefsMap next, boolean changed) {
+        MemoryCommitResult mcr = null;
+        if (changed) {
+            nextApplyGenerationLocked();
+            next.updateSortedKeys();
+            mMap = next;
+            mSnapshot = next;
+            if (mListeners.size() > 0) {
+                mcr = new MemoryCommitResult(mCurrentMemoryStateGeneration,
+                        Collections.singletonList(key),
+                        new HashSet<>(mListeners.keySet()), next);
+            }
         }
+        scheduleApplyWriteLocked();
+        return mcr;
     }
 
-    @Override
-    public int getInt(String key, int defValue) {
+    // Atomic read-modify-write operations. Each reads and modifies the state in one critical
+    // section, so concurrent callers cannot lose updates, and is persisted like apply().
+    //读-改-写在同一个临界区内完成，多线程并发计数不会丢失更新
+
+    /**
+     * Add {@code delta} to the int stored under {@code key}, 0 if there is none.
+     *
+     * @return the new value
+     * @throws ClassCastException if the stored value is not an int
+     */
+    public int incrementAndGet(String key, int delta) {
+        key = internKey(key);
+        final int value;
+        final MemoryCommitResult mcr;
         synchronized (mLock) {
             awaitLoadedLocked();
-            Integer v = (Integer) mMap.get(key);
-            return v != null ? v : defValue;
+            value = mMap.getInt(key, 0) + delta;
+            final PrefsMap next = new PrefsMap(mMap);
+            mcr = applySingleLocked(key, next, next.putInt(key, value));
         }
+        if (mcr != null) {
+            notifyListeners(mcr);
+        }
+        return value;
     }
 
-    @Override
-    public long getLong(String key, long defValue) {
+    /**
+     * Add {@code delta} to the long stored under {@code key}, 0 if there is none.
+     *
+     * @return the new value
+     * @throws ClassCastException if the stored value is not a long
+     */
+    public long incrementAndGet(String key, long delta) {
+        key = internKey(key);
+        final long value;
+        final MemoryCommitResult mcr;
         synchronized (mLock) {
             awaitLoadedLocked();
-            Long v = (Long) mMap.get(key);
-            return v != null ? v : defValue;
+            value = mMap.getLong(key, 0) + delta;
+            final PrefsMap next = new PrefsMap(mMap);
+            mcr = applySingleLocked(key, next, next.putLong(key, value));
+        }
+        if (mcr != null) {
+            notifyListeners(mcr);
         }
+        return value;
     }
 
-    @Override
-    public float getFloat(String key, float defValue) {
+    /**
+     * Set {@code key} to {@code newValue} if it currently holds {@code expected}. A
+     * {@code null} {@code expected} matches a missing key, a {@code null} {@code newValue}
+     * removes the key. Values are compared with {@link Object#equals}, boxed like in
+     * {@link #getAll()}.
+     *
+     * @return true if the value was set
+     */
+    public boolean compareAndSet(String key, @Nullable Object expected,
+            @Nullable Object newValue) {
+        key = internKey(key);
+        final MemoryCommitResult mcr;
         synchronized (mLock) {
             awaitLoadedLocked();
-            Float v = (Float) mMap.get(key);
-            return v != null ? v : defValue;
+            final int slot = mMap.indexOf(key);
+            final Object current = slot >= 0 ? mMap.valueAt(slot) : null;
+            if (expected == null ? slot >= 0 : !expected.equals(current)) {
+                return false;
+            }
+            final PrefsMap next = new PrefsMap(mMap);
+            final boolean changed = newValue == null ? next.delete(key)
+                    : next.putValue(key, newValue);
+            mcr = applySingleLocked(key, next, changed);
         }
+        if (mcr != null) {
+            notifyListeners(mcr);
+        }
+        return true;
     }
 
-    @Override
-    public boolean getBoolean(String key, boolean defValue) {
+    /**
+     * Replace the value of {@code key} with the result of {@code function}, which is passed
+     * the current value or the key's default. A {@code null} result removes the key.
+     * {@code function} runs while this file is locked, so it must be quick and must not
+     * access these preferences itself.
+     *
+     * @return the new value
+     */
+    @Nullable
+    public <T> T update(PrefKey<T> key, UnaryOperator<T> function) {
+        final String name = internKey(key.name);
+        final T value;
+        final MemoryCommitResult mcr;
         synchronized (mLock) {
             awaitLoadedLocked();
-            Boolean v = (Boolean) mMap.get(key);
-            return v != null ? v : defValue;
+            value = function.apply(get(key, mMap));
+            final PrefsMap next = new PrefsMap(mMap);
+            final boolean changed = value == null ? next.delete(name)
+                    : next.putValue(name, value);
+            mcr = applySingleLocked(name, next, changed);
         }
+        if (mcr != null) {
+            notifyListeners(mcr);
+        }
+        return value;
     }
 
-    @Override
-    public boolean contains(String key) {
-        synchronized (mLock) {
-            awaitLoadedLocked();
-            return mMap.containsKey(key);
-        }
+    private static String internKey(String key) {
+        final PrefsStringPool pool = sStringPool;
+        return pool != null ? pool.intern(key) : key;
     }
 
     @Override
@@ -370,7 +1344,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
         final List<String> keysModified;
         @Nullable
         final Set<OnSharedPreferenceChangeListener> listeners;
-        final Map<String, Object> mapToWriteToDisk;
+        final PrefsMap mapToWriteToDisk;
         final CountDownLatch writtenToDiskLatch = new CountDownLatch(1);
 
         @GuardedBy("mWritingToDiskLock")
@@ -379,7 +1353,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
         private MemoryCommitResult(long memoryStateGeneration, @Nullable List<String> keysModified,
                                    @Nullable Set<OnSharedPreferenceChangeListener> listeners,
-                                   Map<String, Object> mapToWriteToDisk) {
+                                   PrefsMap mapToWriteToDisk) {
             this.memoryStateGeneration = memoryStateGeneration;
             this.keysModified = keysModified;
             this.listeners = listeners;
@@ -393,11 +1367,35 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
     }
 
+    private void notifyListeners(final MemoryCommitResult mcr) {
+        if (mcr.listeners == null || mcr.keysModified == null ||
+                mcr.keysModified.size() == 0) {
+            return;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            for (int i = mcr.keysModified.size() - 1; i >= 0; i--) {
+                final String key = mcr.keysModified.get(i);
+                for (OnSharedPreferenceChangeListener listener : mcr.listeners) {
+                    if (listener != null) {
+                        listener.onSharedPreferenceChanged(SharedPreferencesImpl.this, key);
+                    }
+                }
+            }
+        } else {
+            // Run this function on the main thread.
+            ActivityThread.sMainThreadHandler.post(() -> notifyListeners(mcr));
+        }
+    }
+
     public final class EditorImpl implements Editor {
         private final Object mEditorLock = new Object();
 
+        /**
+         * Pending modifications, typed like the state so that primitive puts are not boxed.
+         * Removals are recorded as {@link PrefsMap#TYPE_REMOVE}.
+         */
         @GuardedBy("mEditorLock")
-        private final Map<String, Object> mModified = new HashMap<>();
+        private final PrefsMap mModified = new PrefsMap();
 
         @GuardedBy("mEditorLock")
         private boolean mClear = false;
@@ -405,8 +1403,12 @@ final class SharedPreferencesImpl implements SharedPreferences {
         @Override
         public Editor putString(String key, @Nullable String value) {
             synchronized (mEditorLock) {
-                //创建一个Map<String, Object> mModified来保存不同类型的数据
-                mModified.put(key, value);
+                //用按类型存储的PrefsMap mModified来保存不同类型的数据，基本类型不装箱
+                if (value == null) {
+                    mModified.putRemove(key);
+                } else {
+                    mModified.putString(key, value);
+                }
                 return this;
             }
         }
@@ -414,8 +1416,12 @@ final class SharedPreferencesImpl implements SharedPreferences {
         @Override
         public Editor putStringSet(String key, @Nullable Set<String> values) {
             synchronized (mEditorLock) {
-                mModified.put(key,
-                        (values == null) ? null : new HashSet<String>(values));
+                if (values == null) {
+                    mModified.putRemove(key);
+                } else {
+                    //拷贝成不可变的有序数组集合，内存状态、写盘线程和调用方共享同一份
+                    mModified.putStringSet(key, values);
+                }
                 return this;
             }
         }
@@ -423,7 +1429,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
         @Override
         public Editor putInt(String key, int value) {
             synchronized (mEditorLock) {
-                mModified.put(key, value);
+                mModified.putInt(key, value);
                 return this;
             }
         }
@@ -431,7 +1437,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
         @Override
         public Editor putLong(String key, long value) {
             synchronized (mEditorLock) {
-                mModified.put(key, value);
+                mModified.putLong(key, value);
                 return this;
             }
         }
@@ -439,7 +1445,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
         @Override
         public Editor putFloat(String key, float value) {
             synchronized (mEditorLock) {
-                mModified.put(key, value);
+                mModified.putFloat(key, value);
                 return this;
             }
         }
@@ -447,7 +1453,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
         @Override
         public Editor putBoolean(String key, boolean value) {
             synchronized (mEditorLock) {
-                mModified.put(key, value);
+                mModified.putBoolean(key, value);
                 return this;
             }
         }
@@ -455,11 +1461,71 @@ final class SharedPreferencesImpl implements SharedPreferences {
         @Override
         public Editor remove(String key) {
             synchronized (mEditorLock) {
-                mModified.put(key, this);
+                mModified.putRemove(key);
                 return this;
             }
         }
 
+        /**
+         * Set the value of a declared key. {@code null} removes it, like
+         * {@link #putString}.
+         */
+        @SuppressWarnings("unchecked")
+        public <T> EditorImpl put(PrefKey<T> key, @Nullable T value) {
+            if (value == null) {
+                remove(key.name);
+                return this;
+            }
+            switch (key.type) {
+                case BinaryPrefsFormat.TYPE_INT:
+                    putInt(key.name, (Integer) value);
+                    break;
+                case BinaryPrefsFormat.TYPE_LONG:
+                    putLong(key.name, (Long) value);
+                    break;
+                case BinaryPrefsFormat.TYPE_FLOAT:
+                    putFloat(key.name, (Float) value);
+                    break;
+                case BinaryPrefsFormat.TYPE_BOOLEAN:
+                    putBoolean(key.name, (Boolean) value);
+                    break;
+                case BinaryPrefsFormat.TYPE_STRING:
+                    putString(key.name, (String) value);
+                    break;
+                default:
+                    putStringSet(key.name, (Set<String>) value);
+                    break;
+            }
+            return this;
+        }
+
+        // Unboxed variants of put(PrefKey, T)
+
+        public EditorImpl putInt(PrefKey<Integer> key, int value) {
+            putInt(key.name, value);
+            return this;
+        }
+
+        public EditorImpl putLong(PrefKey<Long> key, long value) {
+            putLong(key.name, value);
+            return this;
+        }
+
+        public EditorImpl putFloat(PrefKey<Float> key, float value) {
+            putFloat(key.name, value);
+            return this;
+        }
+
+        public EditorImpl putBoolean(PrefKey<Boolean> key, boolean value) {
+            putBoolean(key.name, value);
+            return this;
+        }
+
+        public EditorImpl remove(PrefKey<?> key) {
+            remove(key.name);
+            return this;
+        }
+
         @Override
         public Editor clear() {
             synchronized (mEditorLock) {
@@ -470,69 +1536,91 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
         @Override
         public void apply() {
-            final long startTime = System.currentTimeMillis();
-
-            //提交到内存
-            final MemoryCommitResult mcr = commitToMemory();
-            final Runnable awaitCommit = new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        mcr.writtenToDiskLatch.await();
-                    } catch (InterruptedException ignored) {
-                    }
-
-                    if (DEBUG && mcr.wasWritten) {
-                        Log.d(TAG, mFile.getName() + ":" + mcr.memoryStateGeneration
-                                + " applied after " + (System.currentTimeMillis() - startTime)
-                                + " ms");
-                    }
-                }
-            };
-
-            //往系统队列中发送任务
-            QueuedWork.addFinisher(awaitCommit);
-
-            Runnable postWriteRunnable = new Runnable() {
-                @Override
-                public void run() {
-                    awaitCommit.run();
-                    //系统队列中删除任务
-                    QueuedWork.removeFinisher(awaitCommit);
-                }
-            };
-
-            //异步保存在磁盘
-            SharedPreferencesImpl.this.enqueueDiskWrite(mcr, postWriteRunnable);
+            //提交到内存，写盘任务和finisher每个实例只有一个，apply本身不再分配对象
+            final MemoryCommitResult mcr = commitToMemory(true);
 
             // Okay to notify the listeners before it's hit disk
             // because the listeners should always get the same
             // SharedPreferences instance back, which has the
             // changes reflected in memory.
-            notifyListeners(mcr);
+            if (mcr != null) {
+                notifyListeners(mcr);
+            }
+        }
+
+        /**
+         * Apply the pending modifications to {@code next}, a copy of the current state, and
+         * forget them.
+         *
+         * @param keysModified if non-null, receives the keys whose values changed
+         * @return whether {@code next} changed
+         */
+        @GuardedBy("SharedPreferencesImpl.this.mLock")
+        boolean applyModificationsLocked(PrefsMap next, @Nullable List<String> keysModified) {
+            synchronized (mEditorLock) {
+                boolean changesMade = false;
+                final PrefsStringPool pool = sStringPool;
+                if (pool != null) {
+                    mModified.internStrings(pool);
+                }
+                //清空mMap
+                if (mClear) {
+                    if (!next.isEmpty()) {
+                        changesMade = true;
+                        next.clear();
+                    }
+                    mClear = false;
+                }
+                for (int slot = 0; slot < mModified.capacity(); slot++) {
+                    final String k = mModified.keyAt(slot);
+                    if (k == null) {
+                        continue;
+                    }
+                    //remove或者put了null时执行删除
+                    if (mModified.typeAt(slot) == PrefsMap.TYPE_REMOVE) {
+                        //如果原数据里没有改Key则不操作，有则删除
+                        if (!next.delete(k)) {
+                            continue;
+                        }
+                    } else {
+                        //将修改过的键值对按类型保存在内存里，值没变化则不作保存
+                        if (!next.putFrom(mModified, slot)) {
+                            continue;
+                        }
+                    }
+                    changesMade = true;
+                    if (keysModified != null) {
+                        //被修改的键池
+                        keysModified.add(k);
+                    }
+                }
+                //全部保存在内存后清空修改过的Map
+                mModified.clear();
+                return changesMade;
+            }
         }
 
-        // Returns true if any changes were made
-        private MemoryCommitResult commitToMemory() {
+        /**
+         * Apply the modifications to the in-memory state. For {@code commit()} the result
+         * is to be passed to {@link #enqueueDiskWrite}. For {@code apply()} the write is
+         * scheduled right away and a result is only returned if there are listeners to notify.
+         */
+        @Nullable
+        private MemoryCommitResult commitToMemory(boolean forApply) {
             long memoryStateGeneration;
             List<String> keysModified = null;
             Set<OnSharedPreferenceChangeListener> listeners = null;
-            Map<String, Object> mapToWriteToDisk;
+            PrefsMap mapToWriteToDisk;
             synchronized (SharedPreferencesImpl.this.mLock) {
-                // We optimistically don't make a deep copy until a memory commit comes in when we're already writing
-                // to disk.
-                //我们不会做一个深拷贝，直到内存提交，我们准备写到磁盘上
-                if (mDiskWritesInFlight > 0) {
-                    // We can't modify our mMap as a currently
-                    //我们不能马上修改mMap
-                    // in-flight write owns it.  Clone it before modifying it.
-                    // noinspection unchecked
-                    //不能直接对mMap进行修改
-                    mMap = new HashMap<String, Object>(mMap);
+                // Published maps are read without mLock and handed to in-flight disk writes
+                // as they are, so they are never modified. Build the next state in a copy and
+                // publish that instead. The copy shares all pages it does not change with the
+                // published map, so this costs O(changed keys) rather than O(all keys).
+                //已发布的map不再修改，在共享结构的副本上修改后整体替换mMap
+                mapToWriteToDisk = new PrefsMap(mMap);
+                if (!forApply) {
+                    mDiskWritesInFlight++;
                 }
-                //内存里的map形式的sp
-                mapToWriteToDisk = mMap;
-                mDiskWritesInFlight++;
 
                 //sp修改监听器
                 boolean hasListeners = mListeners.size() > 0;
@@ -542,53 +1630,32 @@ final class SharedPreferencesImpl implements SharedPreferences {
                     listeners = new HashSet<OnSharedPreferenceChangeListener>(mListeners.keySet());
                 }
 
-                synchronized (mEditorLock) {
-                    boolean changesMade = false;
-                    //清空mMap
-                    if (mClear) {
-                        if (!mapToWriteToDisk.isEmpty()) {
-                            changesMade = true;
-                            mapToWriteToDisk.clear();
-                        }
-                        mClear = false;
-                    }
-                    for (Map.Entry<String, Object> e : mModified.entrySet()) {
-                        String k = e.getKey();
-                        Object v = e.getValue();
-                        //当值是sp(remove时传值为sp)或者null时执行删除
-                        if (v == this || v == null) {
-                            //如果原数据里没有改Key则不操作
-                            if (!mapToWriteToDisk.containsKey(k)) {
-                                continue;
-                            }
-                            // 删除
-                            mapToWriteToDisk.remove(k);
-                        } else {
-                            if (mapToWriteToDisk.containsKey(k)) {
-                                //原数据里包含有修改过Map的Key
-                                Object existingValue = mapToWriteToDisk.get(k);
-                                if (existingValue != null && existingValue.equals(v)) {
-                                    //如果sp里的值没变化则不作保存
-                                    continue;
-                                }
-                            }
-                            //将修改过的键值对保存在内存里
-                            mapToWriteToDisk.put(k, v);
-                        }
-                        changesMade = true;
-                        if (hasListeners) {
-                            //被修改的键池
-                            keysModified.add(k);
-                        }
-                    }
-                    //全部保存在内存后清空修改过的Map
-                    mModified.clear();
-                    if (changesMade) {
-                        //内存提交记录+1
+                final boolean changesMade =
+                        applyModificationsLocked(mapToWriteToDisk, keysModified);
+                if (changesMade) {
+                    //内存提交记录+1，合并窗口内的apply沿用待写的generation
+                    if (forApply) {
+                        nextApplyGenerationLocked();
+                    } else {
                         mCurrentMemoryStateGeneration++;
                     }
-                    memoryStateGeneration = mCurrentMemoryStateGeneration;
+                    //有序key索引只合并本次增删的key
+                    mapToWriteToDisk.updateSortedKeys();
+                    mMap = mapToWriteToDisk;
+                    if (mLoaded) {
+                        // During a reload readers keep waiting for the reloaded state
+                        mSnapshot = mapToWriteToDisk;
+                    }
+                } else {
+                    mapToWriteToDisk = mMap;
                 }
+                memoryStateGeneration = mCurrentMemoryStateGeneration;
+                if (forApply) {
+                    scheduleApplyWriteLocked();
+                }
+            }
+            if (forApply && (keysModified == null || keysModified.isEmpty())) {
+                return null;
             }
             return new MemoryCommitResult(memoryStateGeneration, keysModified, listeners,
                     mapToWriteToDisk);
@@ -601,10 +1668,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 startTime = System.currentTimeMillis();
             }
             //保存到内存
-            MemoryCommitResult mcr = commitToMemory();
+            MemoryCommitResult mcr = commitToMemory(false);
             //同步保存到磁盘
-            SharedPreferencesImpl.this.enqueueDiskWrite(
-                    mcr, null /* sync write on this thread okay */);
+            SharedPreferencesImpl.this.enqueueDiskWrite(mcr);
             try {
                 mcr.writtenToDiskLatch.await();
             } catch (InterruptedException e) {
@@ -619,79 +1685,236 @@ final class SharedPreferencesImpl implements SharedPreferences {
             notifyListeners(mcr);
             return mcr.writeToDiskResult;
         }
-
-        private void notifyListeners(final MemoryCommitResult mcr) {
-            if (mcr.listeners == null || mcr.keysModified == null ||
-                    mcr.keysModified.size() == 0) {
-                return;
-            }
-            if (Looper.myLooper() == Looper.getMainLooper()) {
-                for (int i = mcr.keysModified.size() - 1; i >= 0; i--) {
-                    final String key = mcr.keysModified.get(i);
-                    for (OnSharedPreferenceChangeListener listener : mcr.listeners) {
-                        if (listener != null) {
-                            listener.onSharedPreferenceChanged(SharedPreferencesImpl.this, key);
-                        }
-                    }
-                }
-            } else {
-                // Run this function on the main thread.
-                ActivityThread.sMainThreadHandler.post(() -> notifyListeners(mcr));
-            }
-        }
     }
 
     /**
-     * Enqueue an already-committed-to-memory result to be written
+     * Enqueue an already-committed-to-memory result of a {@code commit()} to be written
      * to disk.
      * <p>
      * They will be written to disk one-at-a-time in the order
-     * that they're enqueued.
-     *
-     * @param postWriteRunnable if non-null, we're being called
-     *                          from apply() and this is the runnable to run after
-     *                          the write proceeds.  if null (from a regular commit()),
-     *                          then we're allowed to do this disk write on the main
-     *                          thread (which in addition to reducing allocations and
-     *                          creating a background thread, this has the advantage that
-     *                          we catch them in userdebug StrictMode reports to convert
-     *                          them where possible to apply() ...)
-     */
-    private void enqueueDiskWrite(final MemoryCommitResult mcr,
-                                  final Runnable postWriteRunnable) {
-        //没有runnable则进行同步操作
-        final boolean isFromSyncCommit = (postWriteRunnable == null);
-
+     * that they're enqueued. If nothing else is being written, the
+     * write happens on the calling thread (which in addition to reducing
+     * allocations and creating a background thread, this has the advantage
+     * that we catch them in userdebug StrictMode reports to convert them
+     * where possible to apply() ...)
+     */
+    private void enqueueDiskWrite(final MemoryCommitResult mcr) {
         final Runnable writeToDiskRunnable = new Runnable() {
             @Override
             public void run() {
+                final int result;
                 synchronized (mWritingToDiskLock) {
-                    writeToFile(mcr, isFromSyncCommit);
+                    result = writeToFile(mcr.mapToWriteToDisk, mcr.memoryStateGeneration,
+                            true);
                 }
+                mcr.setDiskWriteResult(result == WRITE_WRITTEN, result != WRITE_FAILED);
                 synchronized (mLock) {
                     mDiskWritesInFlight--;
                 }
-                if (postWriteRunnable != null) {
-                    //从系统队列删除一个任务
-                    postWriteRunnable.run();
-                }
             }
         };
 
         // Typical #commit() path with fewer allocations, doing a write on
         // the current thread.
-        if (isFromSyncCommit) {
-            boolean wasEmpty = false;
-            synchronized (mLock) {
-                wasEmpty = mDiskWritesInFlight == 1;
+        boolean wasEmpty = false;
+        synchronized (mLock) {
+            wasEmpty = mDiskWritesInFlight == 1;
+        }
+        if (wasEmpty) {
+            writeToDiskRunnable.run();
+            return;
+        }
+
+        QueuedWork.queue(writeToDiskRunnable, false);
+    }
+
+    /**
+     * Commit the modifications of {@code editors[i]} to {@code prefs[i]} for every i in one
+     * journal, see {@link SharedPreferencesTransaction}. The files are published one by one.
+     *
+     * @param prefs distinct files of one directory, sorted by path
+     * @return false if the journal could not be written, nothing changed then
+     */
+    static boolean commitTransaction(SharedPreferencesTransaction txn,
+            SharedPreferencesImpl[] prefs, EditorImpl[] editors) {
+        for (SharedPreferencesImpl p : prefs) {
+            p.awaitLoaded();
+        }
+        final MemoryCommitResult[] results = new MemoryCommitResult[prefs.length];
+        if (!commitTransactionLocked(txn, prefs, editors, 0, results)) {
+            return false;
+        }
+        for (int i = 0; i < prefs.length; i++) {
+            if (results[i] != null) {
+                prefs[i].notifyListeners(results[i]);
             }
-            if (wasEmpty) {
-                writeToDiskRunnable.run();
-                return;
+        }
+        return true;
+    }
+
+    /**
+     * Lock {@code prefs[i..]}, then commit once all of them are locked. While the disk write
+     * lock of a file is held, it cannot be written, so the journal records how each file
+     * looked before the transaction.
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean commitTransactionLocked(SharedPreferencesTransaction txn,
+            SharedPreferencesImpl[] prefs, EditorImpl[] editors, int i,
+            MemoryCommitResult[] results) {
+        if (i < prefs.length) {
+            final SharedPreferencesImpl p = prefs[i];
+            synchronized (p.mWritingToDiskLock) {
+                synchronized (p.mLock) {
+                    return commitTransactionLocked(txn, prefs, editors, i + 1, results);
+                }
+            }
+        }
+
+        final PrefsMap[] next = new PrefsMap[prefs.length];
+        final List<String>[] keysModified = new List[prefs.length];
+        final ArrayList<SharedPreferencesTransaction.Entry> entries = new ArrayList<>();
+        for (int j = 0; j < prefs.length; j++) {
+            final SharedPreferencesImpl p = prefs[j];
+            final PrefsMap map = new PrefsMap(p.mMap);
+            if (p.mListeners.size() > 0) {
+                keysModified[j] = new ArrayList<>();
+            }
+            if (editors[j].applyModificationsLocked(map, keysModified[j])) {
+                next[j] = map;
+                entries.add(new SharedPreferencesTransaction.Entry(txn, p.mFile, p.mMode, map,
+                        p.mCurrentMemoryStateGeneration + 1));
+            }
+        }
+        if (entries.isEmpty()) {
+            return true;
+        }
+        //日志写入并fsync后事务才算提交，失败则内存状态也不变
+        if (!txn.writeJournal(entries)) {
+            return false;
+        }
+
+        // Lock-free readers may see some files published before others, only the journal is
+        // all-or-nothing
+        int entry = 0;
+        for (int j = 0; j < prefs.length; j++) {
+            if (next[j] == null) {
+                continue;
+            }
+            final SharedPreferencesImpl p = prefs[j];
+            p.mCurrentMemoryStateGeneration++;
+            next[j].updateSortedKeys();
+            p.mMap = next[j];
+            if (p.mLoaded) {
+                p.mSnapshot = next[j];
+            }
+            if (p.mPendingTransactions == null) {
+                p.mPendingTransactions = new ArrayList<>();
+            }
+            p.mPendingTransactions.add(entries.get(entry++));
+            p.scheduleApplyWriteLocked();
+            if (keysModified[j] != null && !keysModified[j].isEmpty()) {
+                results[j] = new MemoryCommitResult(p.mCurrentMemoryStateGeneration,
+                        keysModified[j], new HashSet<>(p.mListeners.keySet()), next[j]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Let transactions know this file was written with {@code generation}.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private void retireTransactionsLocked(long generation) {
+        if (mPendingTransactions == null) {
+            return;
+        }
+        for (int i = mPendingTransactions.size() - 1; i >= 0; i--) {
+            final SharedPreferencesTransaction.Entry entry = mPendingTransactions.get(i);
+            if (entry.generation <= generation) {
+                mPendingTransactions.remove(i);
+                entry.written();
+            }
+        }
+    }
+
+    /**
+     * Make sure the state just committed by apply() will be written, queueing
+     * {@link #mApplyWriter} unless it is already queued.
+     */
+    @GuardedBy("mLock")
+    private void scheduleApplyWriteLocked() {
+        mApplyGeneration = mCurrentMemoryStateGeneration;
+        if (!mApplyFinisherAdded) {
+            // Stays added until waitToFinish() runs it, so usually this happens once per
+            // onPause() rather than once per apply()
+            mApplyFinisherAdded = true;
+            QueuedWork.addFinisher(mApplyFinisher);
+        }
+        if (!mApplyWriteQueued) {
+            mApplyWriteQueued = true;
+            mDiskWritesInFlight++;
+            final long window = sApplyCoalesceWindowMillis;
+            if (window > 0) {
+                mApplyQueuedMillis = SystemClock.uptimeMillis();
+                QueuedWork.queue(mApplyWriter, window);
+            } else {
+                QueuedWork.queue(mApplyWriter, true);
             }
         }
+    }
+
+    /**
+     * Advance the memory state generation for a change made by apply(). Within the coalescing
+     * window the change joins the generation that is still waiting for {@link #mApplyWriter}:
+     * the writer reads {@link #mMap} only when it runs, so it writes the change either way.
+     */
+    @GuardedBy("mLock")
+    private void nextApplyGenerationLocked() {
+        final long window = sApplyCoalesceWindowMillis;
+        if (window > 0 && mApplyWriteQueued
+                && mApplyGeneration == mCurrentMemoryStateGeneration
+                && SystemClock.uptimeMillis() - mApplyQueuedMillis < window) {
+            return;
+        }
+        mCurrentMemoryStateGeneration++;
+    }
+
+    private void writeApplied() {
+        final PrefsMap map;
+        final long generation;
+        synchronized (mLock) {
+            // apply() calls from now on need another write
+            mApplyWriteQueued = false;
+            map = mMap;
+            generation = mCurrentMemoryStateGeneration;
+        }
+        final int result;
+        synchronized (mWritingToDiskLock) {
+            result = writeToFile(map, generation, false);
+        }
+        if (DEBUG && result == WRITE_WRITTEN) {
+            Log.d(TAG, mFile.getName() + ":" + generation + " applied");
+        }
+        synchronized (mLock) {
+            mDiskWritesInFlight--;
+            if (generation > mApplyWrittenGeneration) {
+                mApplyWrittenGeneration = generation;
+            }
+            mLock.notifyAll();
+        }
+    }
 
-        QueuedWork.queue(writeToDiskRunnable, !isFromSyncCommit);
+    private void awaitApplied() {
+        synchronized (mLock) {
+            // waitToFinish() removed the finisher before running it
+            mApplyFinisherAdded = false;
+            while (mApplyWrittenGeneration < mApplyGeneration) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
     }
 
     private static FileOutputStream createFileOutputStream(File file) {
@@ -717,8 +1940,19 @@ final class SharedPreferencesImpl implements SharedPreferences {
         return str;
     }
 
+    /** Results of {@link #writeToFile} */
+    private static final int WRITE_WRITTEN = 0;
+    /** Nothing to write, the file already is as new or a newer state is about to be written */
+    private static final int WRITE_SKIPPED = 1;
+    private static final int WRITE_FAILED = 2;
+
+    /**
+     * Write {@code map}, the memory state of {@code generation}, to the file.
+     *
+     * @return one of {@link #WRITE_WRITTEN}, {@link #WRITE_SKIPPED} or {@link #WRITE_FAILED}
+     */
     @GuardedBy("mWritingToDiskLock")
-    private void writeToFile(MemoryCommitResult mcr, boolean isFromSyncCommit) {
+    private int writeToFile(PrefsMap map, long generation, boolean isFromSyncCommit) {
         long startTime = 0;
         long existsTime = 0;
         long backupExistsTime = 0;
@@ -748,14 +1982,14 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
             // Only need to write if the disk state is older than this commit
             //如果磁盘的状态比提交的老则修改
-            if (mDiskStateGeneration < mcr.memoryStateGeneration) {
+            if (mDiskStateGeneration < generation) {
                 if (isFromSyncCommit) {
                     needsWrite = true;
                 } else {
                     synchronized (mLock) {
                         // No need to persist intermediate states. Just wait for the latest state to
                         // be persisted.
-                        if (mCurrentMemoryStateGeneration == mcr.memoryStateGeneration) {
+                        if (mCurrentMemoryStateGeneration == generation) {
                             needsWrite = true;
                         }
                     }
@@ -763,8 +1997,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
             }
 
             if (!needsWrite) {
-                mcr.setDiskWriteResult(false, true);
-                return;
+                return WRITE_SKIPPED;
             }
 
             boolean backupFileExists = mBackupFile.exists();
@@ -777,8 +2010,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 if (!mFile.renameTo(mBackupFile)) {
                     Log.e(TAG, "Couldn't rename file " + mFile
                             + " to backup file " + mBackupFile);
-                    mcr.setDiskWriteResult(false, false);
-                    return;
+                    return WRITE_FAILED;
                 }
             } else {
                 mFile.delete();
@@ -796,10 +2028,13 @@ final class SharedPreferencesImpl implements SharedPreferences {
             }
 
             if (str == null) {
-                mcr.setDiskWriteResult(false, false);
-                return;
+                return WRITE_FAILED;
+            }
+            if (sUseBinaryFormat) {
+                BinaryPrefsFormat.writeMap(map, generation, str);
+            } else {
+                XmlUtils.writeMapXml(map, str);
             }
-            XmlUtils.writeMapXml(mcr.mapToWriteToDisk, str);
 
             writeTime = System.currentTimeMillis();
 
@@ -814,8 +2049,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 setPermTime = System.currentTimeMillis();
             }
 
+            StructStat stat = null;
             try {
-                final StructStat stat = Os.stat(mFile.getPath());
+                stat = Os.stat(mFile.getPath());
                 synchronized (mLock) {
                     mStatTimestamp = stat.st_mtim;
                     mStatSize = stat.st_size;
@@ -835,9 +2071,8 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 deleteTime = System.currentTimeMillis();
             }
 
-            mDiskStateGeneration = mcr.memoryStateGeneration;
-
-            mcr.setDiskWriteResult(true, true);
+            mDiskStateGeneration = generation;
+            retireTransactionsLocked(generation);
 
             if (DEBUG) {
                 Log.d(TAG, "write: " + (existsTime - startTime) + "/"
@@ -858,7 +2093,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 mSyncTimes.log(TAG, "Time required to fsync " + mFile + ": ");
             }
 
-            return;
+            return WRITE_WRITTEN;
         } catch (XmlPullParserException e) {
             Log.w(TAG, "writeToFile: Got exception:", e);
         } catch (IOException e) {
@@ -871,6 +2106,6 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 Log.e(TAG, "Couldn't clean up partially-written file " + mFile);
             }
         }
-        mcr.setDiskWriteResult(false, false);
+        return WRITE_FAILED;
     }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.kingja.pokonyan;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.LinkedList;
+
+/**
+ * Process-global, bounded pool of threads that load {@link SharedPreferencesImpl} files from
+ * disk.
+ *
+ * Loads are {@link #queue queued} and run in order by at most {@link #setMaxThreads} threads,
+ * so opening many preference files at once does not start one thread per file. A load somebody
+ * is already waiting for can be {@link #promote promoted} to the front of the queue.
+ *
+ * Threads are started on demand and exit after being idle for {@value #KEEP_ALIVE_MILLIS} ms.
+ *
+ * @hide
+ */
+final class SharedPreferencesLoader {
+    private static final String LOG_TAG = SharedPreferencesLoader.class.getSimpleName();
+
+    /** How long an idle loader thread waits for new work before it exits */
+    private static final long KEEP_ALIVE_MILLIS = 5000;
+
+    /** Lock for this class */
+    private static final Object sLock = new Object();
+
+    /** Loads {@link #queue queued} and not yet started */
+    @GuardedBy("sLock")
+    private static final LinkedList<Runnable> sPending = new LinkedList<>();
+
+    /** Maximum number of loader threads */
+    @GuardedBy("sLock")
+    private static int sMaxThreads = 2;
+
+    /** Number of loader threads currently alive */
+    @GuardedBy("sLock")
+    private static int sNumThreads = 0;
+
+    /** Number of loader threads waiting for work */
+    @GuardedBy("sLock")
+    private static int sNumIdleThreads = 0;
+
+    /** {@link #dispatch Runs} load callbacks, lazily created */
+    @GuardedBy("sLock")
+    private static Handler sCallbackHandler;
+
+    private SharedPreferencesLoader() {
+    }
+
+    /**
+     * Set how many loads may run in parallel. Threads that are already running are not
+     * stopped if the number is lowered; they exit once they are idle.
+     *
+     * @param maxThreads The maximum number of loader threads, at least 1
+     */
+    static void setMaxThreads(int maxThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be at least 1: " + maxThreads);
+        }
+        synchronized (sLock) {
+            sMaxThreads = maxThreads;
+        }
+    }
+
+    /**
+     * Queue a load to be run on a loader thread. Queueing a load that is still pending is a
+     * no-op.
+     *
+     * @param load The load to run
+     */
+    static void queue(Runnable load) {
+        synchronized (sLock) {
+            if (sPending.contains(load)) {
+                return;
+            }
+            sPending.addLast(load);
+
+            if (sPending.size() > sNumIdleThreads && sNumThreads < sMaxThreads) {
+                sNumThreads++;
+                new Thread("SharedPreferencesImpl-load") {
+                    public void run() {
+                        runLoads();
+                    }
+                }.start();
+            } else {
+                sLock.notify();
+            }
+        }
+    }
+
+    /**
+     * Move a pending load to the front of the queue, e.g. because a thread is blocked on it.
+     * Does nothing if the load already started or is not queued.
+     *
+     * @param load The load previously passed to {@link #queue}
+     */
+    static void promote(Runnable load) {
+        synchronized (sLock) {
+            if (sPending.peekFirst() != load && sPending.remove(load)) {
+                sPending.addFirst(load);
+            }
+        }
+    }
+
+    /**
+     * Run callbacks of a finished load on a thread outside the loader pool. A callback may
+     * block on another file that is not loaded yet; on a loader thread that could stall, or
+     * with all loader threads blocked deadlock, every pending load.
+     *
+     * @param callbacks The callbacks to run, in order
+     */
+    static void dispatch(Runnable callbacks) {
+        final Handler handler;
+        synchronized (sLock) {
+            if (sCallbackHandler == null) {
+                HandlerThread handlerThread = new HandlerThread("SharedPreferencesImpl-callbacks",
+                        Process.THREAD_PRIORITY_FOREGROUND);
+                handlerThread.start();
+
+                sCallbackHandler = new Handler(handlerThread.getLooper());
+            }
+            handler = sCallbackHandler;
+        }
+        handler.post(callbacks);
+    }
+
+    private static void runLoads() {
+        while (true) {
+            final Runnable load;
+
+            synchronized (sLock) {
+                if (sPending.isEmpty()) {
+                    sNumIdleThreads++;
+                    try {
+                        sLock.wait(KEEP_ALIVE_MILLIS);
+                    } catch (InterruptedException ignored) {
+                    } finally {
+                        sNumIdleThreads--;
+                    }
+
+                    if (sPending.isEmpty()) {
+                        sNumThreads--;
+                        return;
+                    }
+                }
+                load = sPending.removeFirst();
+            }
+
+            try {
+                load.run();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Preferences load failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.kingja.pokonyan;
+
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which preference files a process opened shortly after it started, so the next
+ * process can prefetch them. See {@link ContextImpl#startLearnedPrefetch}.
+ *
+ * The manifest is a small text file with one {@code "<mode> <name>"} line per preference
+ * file, in the order the files were first opened.
+ *
+ * @hide
+ */
+final class SharedPreferencesManifest {
+    private static final String TAG = "SharedPreferencesManifest";
+
+    /** Name of the manifest file in the code cache directory */
+    static final String FILE_NAME = "shared_prefs_prefetch";
+
+    private final File mFile;
+
+    /** Uptime after which accesses are no longer recorded */
+    private final long mDeadline;
+
+    /** Preference name to mode, in order of first access */
+    @GuardedBy("this")
+    private final LinkedHashMap<String, Integer> mRecorded = new LinkedHashMap<>();
+
+    @GuardedBy("this")
+    private boolean mRecording = true;
+
+    SharedPreferencesManifest(File codeCacheDir, long recordWindowMillis) {
+        mFile = new File(codeCacheDir, FILE_NAME);
+        mDeadline = SystemClock.uptimeMillis() + recordWindowMillis;
+    }
+
+    /**
+     * Record that a preference file was opened, if still inside the recording window.
+     */
+    void record(@Nullable String name, int mode) {
+        // A null name still opens null.xml, but cannot be written to the manifest
+        if (name == null || name.indexOf('\n') >= 0) {
+            return;
+        }
+        synchronized (this) {
+            if (!mRecording || SystemClock.uptimeMillis() > mDeadline) {
+                return;
+            }
+            if (!mRecorded.containsKey(name)) {
+                mRecorded.put(name, mode);
+            }
+        }
+    }
+
+    /**
+     * Read the manifest written by a previous process.
+     *
+     * @return preference name to mode, in the order the previous process opened them. Empty if
+     *         there is no manifest yet.
+     */
+    LinkedHashMap<String, Integer> read() {
+        final LinkedHashMap<String, Integer> names = new LinkedHashMap<>();
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(mFile),
+                    StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                final int space = line.indexOf(' ');
+                if (space <= 0) {
+                    continue;
+                }
+                try {
+                    names.put(line.substring(space + 1),
+                            Integer.parseInt(line.substring(0, space)));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Ignoring bad line in " + mFile + ": " + line);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // First start with this feature, nothing learned yet
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + mFile, e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        return names;
+    }
+
+    /**
+     * Stop recording and replace the manifest with what was recorded.
+     */
+    void finishAndWrite() {
+        final LinkedHashMap<String, Integer> recorded;
+        synchronized (this) {
+            mRecording = false;
+            recorded = new LinkedHashMap<>(mRecorded);
+        }
+
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        BufferedWriter out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp),
+                    StandardCharsets.UTF_8));
+            for (Map.Entry<String, Integer> e : recorded.entrySet()) {
+                out.write(e.getValue() + " " + e.getKey());
+                out.newLine();
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "Couldn't rename " + tmp + " to " + mFile);
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write " + mFile, e);
+            tmp.delete();
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
+}
@@ -0,0 +1,568 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.kingja.pokonyan;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.FileUtils;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.XmlUtils;
+
+import libcore.io.IoUtils;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Edits to several preference files that are committed together: either all of them reach
+ * the disk or none of them do.
+ * <pre>
+ *   SharedPreferencesTransaction txn = context.beginSharedPreferencesTransaction();
+ *   txn.edit("account").putString("token", token);
+ *   txn.edit("sync").putLong("cursor", cursor);
+ *   txn.commit();
+ * </pre>
+ *
+ * {@link #commit} writes the new contents of all modified files to one journal and syncs it,
+ * which is the only sync the caller waits for. The files themselves are then written like
+ * after {@code apply()}, and the journal is deleted once all of them are. If the process dies
+ * before that, the next load of a file in the same directory replays the journal: every file
+ * that still is as it was before the transaction gets the contents from the journal. A
+ * journal that was not completely written is ignored, so then none of the files change.
+ * The committing process keeps a lock file next to its journal locked until the journal is
+ * deleted, so other processes sharing the directory only replay journals of processes that
+ * died.
+ *
+ * Only the disk is updated atomically. In memory the files are published one after another,
+ * and getters do not lock, so a concurrent reader may briefly see some files of the
+ * transaction changed and others not yet. Other edits of the files are blocked until all of
+ * them are published.
+ *
+ * All files of a transaction must be in the same directory.
+ */
+public final class SharedPreferencesTransaction {
+    private static final String TAG = "SharedPreferencesTransaction";
+
+    /** Directory of journals, next to the preference files */
+    static final String JOURNAL_DIR = ".journal";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    /** Journal still being written, renamed to {@link #JOURNAL_SUFFIX} once it is durable */
+    private static final String TMP_SUFFIX = ".tmp";
+    /**
+     * Locked by the committing process until its journal is deleted, and by a process
+     * replaying the journal. Separate from the journal, so taking it never re-creates a
+     * journal that was deleted meanwhile.
+     */
+    private static final String LOCK_SUFFIX = ".lock";
+
+    /** "SPTX" */
+    static final int MAGIC = 0x53505458;
+    static final int VERSION = 1;
+
+    /** Serializes creating, replaying and deleting journals within the process */
+    private static final Object sJournalLock = new Object();
+
+    /**
+     * Lock files of transactions of this process whose files are not all written yet. Never
+     * opened by {@link #recover}: closing any descriptor of a file drops this process's lock
+     * on it.
+     */
+    @GuardedBy("sJournalLock")
+    private static final HashSet<String> sActiveJournals = new HashSet<>();
+
+    @GuardedBy("sJournalLock")
+    private static int sNextId;
+
+    private final ContextImpl mContext;
+
+    @GuardedBy("this")
+    private final LinkedHashMap<SharedPreferencesImpl, SharedPreferencesImpl.EditorImpl>
+            mEditors = new LinkedHashMap<>();
+
+    @GuardedBy("this")
+    private boolean mCommitted;
+
+    @GuardedBy("this")
+    private File mJournal;
+
+    @GuardedBy("this")
+    private File mLockFile;
+
+    /**
+     * Keeps the {@link FileChannel#lock lock} on {@link #mLockFile} until the journal is
+     * deleted, so that other processes sharing the directory do not replay it while this one
+     * writes the files
+     */
+    @GuardedBy("this")
+    private FileOutputStream mLockStream;
+
+    /** Files of this transaction that were not written yet */
+    @GuardedBy("this")
+    private int mNumUnwritten;
+
+    SharedPreferencesTransaction(ContextImpl context) {
+        mContext = context;
+    }
+
+    /**
+     * @return the editor of this transaction for the preference file {@code name}, in
+     *         {@link Context#MODE_PRIVATE}
+     */
+    public SharedPreferences.Editor edit(String name) {
+        return edit(mContext.getSharedPreferences(name, Context.MODE_PRIVATE));
+    }
+
+    /**
+     * @return the editor of this transaction for {@code prefs}. Its {@code commit()} and
+     *         {@code apply()} must not be called; its edits are committed by {@link #commit}.
+     */
+    public synchronized SharedPreferences.Editor edit(SharedPreferences prefs) {
+        if (mCommitted) {
+            throw new IllegalStateException("Transaction already committed");
+        }
+        if (!(prefs instanceof SharedPreferencesImpl)) {
+            throw new IllegalArgumentException("Unsupported SharedPreferences " + prefs);
+        }
+        final SharedPreferencesImpl impl = (SharedPreferencesImpl) prefs;
+        SharedPreferencesImpl.EditorImpl editor = mEditors.get(impl);
+        if (editor == null) {
+            if (!mEditors.isEmpty()) {
+                final File dir = mEditors.keySet().iterator().next().getFile().getParentFile();
+                if (!dir.equals(impl.getFile().getParentFile())) {
+                    throw new IllegalArgumentException(impl.getFile()
+                            + " is not in the directory of the other files, " + dir);
+                }
+            }
+            editor = (SharedPreferencesImpl.EditorImpl) impl.edit();
+            mEditors.put(impl, editor);
+        }
+        return editor;
+    }
+
+    /**
+     * Commit the edits to all files.
+     *
+     * @return true if the journal was written, which makes the edits durable. If false,
+     *         nothing changed and the edits are discarded.
+     */
+    public boolean commit() {
+        final SharedPreferencesImpl[] prefs;
+        final SharedPreferencesImpl.EditorImpl[] editors;
+        synchronized (this) {
+            if (mCommitted) {
+                throw new IllegalStateException("Transaction already committed");
+            }
+            mCommitted = true;
+            prefs = mEditors.keySet().toArray(new SharedPreferencesImpl[mEditors.size()]);
+        }
+        if (prefs.length == 0) {
+            return true;
+        }
+        // Concurrent transactions lock their files in the same order
+        Arrays.sort(prefs, (a, b) -> a.getFile().getPath().compareTo(b.getFile().getPath()));
+        editors = new SharedPreferencesImpl.EditorImpl[prefs.length];
+        synchronized (this) {
+            for (int i = 0; i < prefs.length; i++) {
+                editors[i] = mEditors.get(prefs[i]);
+            }
+        }
+        return SharedPreferencesImpl.commitTransaction(this, prefs, editors);
+    }
+
+    /**
+     * New contents of one file of a committed transaction.
+     */
+    static final class Entry {
+        final SharedPreferencesTransaction transaction;
+        final File file;
+        final int mode;
+        final PrefsMap map;
+        /** Memory state generation of the file that contains the transaction */
+        final long generation;
+
+        Entry(SharedPreferencesTransaction transaction, File file, int mode, PrefsMap map,
+                long generation) {
+            this.transaction = transaction;
+            this.file = file;
+            this.mode = mode;
+            this.map = map;
+            this.generation = generation;
+        }
+
+        /**
+         * Called once the file was written with at least {@link #generation}.
+         */
+        void written() {
+            transaction.fileWritten();
+        }
+    }
+
+    /**
+     * Write and sync the journal of {@code entries}. Called while all files are locked, so
+     * none of them changes on disk meanwhile.
+     *
+     * @return whether the journal is durable
+     */
+    boolean writeJournal(List<Entry> entries) {
+        final File prefsDir = entries.get(0).file.getParentFile();
+        final File dir = new File(prefsDir, JOURNAL_DIR);
+        if (!dir.isDirectory()) {
+            if (!dir.mkdir() && !dir.isDirectory()) {
+                Log.w(TAG, "Couldn't create journal directory " + dir);
+                return false;
+            }
+            try {
+                syncDirectory(prefsDir);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot sync " + prefsDir, e);
+                return false;
+            }
+        }
+        final String name;
+        synchronized (sJournalLock) {
+            // Names sort in the order the transactions were committed
+            name = String.format("%016x-%08x-%08x", System.currentTimeMillis(), Os.getpid(),
+                    sNextId++);
+        }
+        final File tmp = new File(dir, name + TMP_SUFFIX);
+        final File journal = new File(dir, name + JOURNAL_SUFFIX);
+        final File lockFile = new File(dir, name + LOCK_SUFFIX);
+        synchronized (sJournalLock) {
+            sActiveJournals.add(lockFile.getPath());
+        }
+
+        FileOutputStream lock = null;
+        FileOutputStream out = null;
+        try {
+            // Locked before the journal exists, so no other process replays it half written
+            lock = lockNew(lockFile);
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                final Entry entry = entries.get(i);
+                writeString(data, entry.file.getPath());
+                data.writeInt(entry.mode);
+                // How the file looks before the transaction, so recovery can tell whether it
+                // still has to be written
+                StructStat stat = null;
+                try {
+                    stat = Os.stat(entry.file.getPath());
+                } catch (ErrnoException e) {
+                    // Does not exist yet
+                }
+                data.writeLong(stat != null ? stat.st_mtim.tv_sec : 0);
+                data.writeLong(stat != null ? stat.st_mtim.tv_nsec : 0);
+                data.writeLong(stat != null ? stat.st_size : -1);
+                final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+                BinaryPrefsFormat.writeMap(entry.map, entry.generation, contents);
+                data.writeInt(contents.size());
+                contents.writeTo(data);
+            }
+            data.flush();
+            final CRC32 crc = new CRC32();
+            final byte[] body = bytes.toByteArray();
+            crc.update(body, 0, body.length);
+
+            out = new FileOutputStream(tmp);
+            out.write(body);
+            new DataOutputStream(out).writeLong(crc.getValue());
+            FileUtils.sync(out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(journal)) {
+                throw new IOException("Couldn't rename " + tmp + " to " + journal);
+            }
+            //日志文件和目录项都fsync之后事务才算提交
+            syncDirectory(dir);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write journal " + journal, e);
+            IoUtils.closeQuietly(out);
+            tmp.delete();
+            journal.delete();
+            lockFile.delete();
+            IoUtils.closeQuietly(lock);
+            synchronized (sJournalLock) {
+                sActiveJournals.remove(lockFile.getPath());
+            }
+            return false;
+        }
+
+        synchronized (this) {
+            mJournal = journal;
+            mLockFile = lockFile;
+            mLockStream = lock;
+            mNumUnwritten = entries.size();
+        }
+        return true;
+    }
+
+    private void fileWritten() {
+        final File journal;
+        final File lockFile;
+        final FileOutputStream lock;
+        synchronized (this) {
+            if (--mNumUnwritten > 0) {
+                return;
+            }
+            journal = mJournal;
+            lockFile = mLockFile;
+            lock = mLockStream;
+            mLockStream = null;
+        }
+        synchronized (sJournalLock) {
+            // Delete before unlocking, so a process that locks it afterwards finds it gone
+            journal.delete();
+            lockFile.delete();
+            IoUtils.closeQuietly(lock);
+            sActiveJournals.remove(lockFile.getPath());
+        }
+    }
+
+    /**
+     * Create and lock {@code lockFile}. A process recovering the directory may have locked
+     * and deleted it in the meantime, then the lock is on a file nobody else can see and it
+     * is created again.
+     */
+    private static FileOutputStream lockNew(File lockFile) throws IOException {
+        while (true) {
+            final FileOutputStream lock = new FileOutputStream(lockFile);
+            try {
+                lock.getChannel().lock();
+                if (Os.fstat(lock.getFD()).st_ino == Os.stat(lockFile.getPath()).st_ino) {
+                    return lock;
+                }
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.ENOENT) {
+                    IoUtils.closeQuietly(lock);
+                    throw e.rethrowAsIOException();
+                }
+            } catch (IOException e) {
+                IoUtils.closeQuietly(lock);
+                throw e;
+            }
+            IoUtils.closeQuietly(lock);
+        }
+    }
+
+    /**
+     * Sync the entries of {@code dir}, so files created or renamed in it survive a crash.
+     */
+    private static void syncDirectory(File dir) throws IOException {
+        FileDescriptor fd = null;
+        try {
+            fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+            Os.fsync(fd);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        } finally {
+            IoUtils.closeQuietly(fd);
+        }
+    }
+
+    /**
+     * Replay the journals left behind in {@code prefsDir} by transactions that did not finish,
+     * newest first. Must be called before a preference file of that directory is read.
+     */
+    static void recover(File prefsDir) {
+        final File dir = new File(prefsDir, JOURNAL_DIR);
+        final String[] names = dir.list();
+        if (names == null || names.length == 0) {
+            return;
+        }
+        Arrays.sort(names);
+        synchronized (sJournalLock) {
+            // A file written by a newer transaction no longer looks like it did before an
+            // older one, so replaying newest first keeps the newest contents
+            final HashSet<String> done = new HashSet<>();
+            for (int i = names.length - 1; i >= 0; i--) {
+                final int dot = names[i].lastIndexOf('.');
+                final String name = dot > 0 ? names[i].substring(0, dot) : names[i];
+                if (!done.add(name)) {
+                    continue;
+                }
+                final File lockFile = new File(dir, name + LOCK_SUFFIX);
+                if (sActiveJournals.contains(lockFile.getPath())) {
+                    continue;
+                }
+                final File journal = new File(dir, name + JOURNAL_SUFFIX);
+                FileOutputStream lock = null;
+                try {
+                    lock = new FileOutputStream(lockFile, true);
+                    //其他进程还在写这个事务的文件时锁文件是加锁的，跳过
+                    if (lock.getChannel().tryLock() == null) {
+                        continue;
+                    }
+                    if (!replay(journal)) {
+                        // Try again with the next load
+                        continue;
+                    }
+                    journal.delete();
+                    new File(dir, name + TMP_SUFFIX).delete();
+                    lockFile.delete();
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot lock journal " + journal, e);
+                } finally {
+                    IoUtils.closeQuietly(lock);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if the journal should be replayed again later, true if it is done with,
+     *         whether its files were rolled forward, or it was incomplete or already gone
+     */
+    private static boolean replay(File journal) {
+        final ByteBuffer buf;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(journal);
+            buf = BinaryPrefsFormat.readBuffer(in, in.getChannel().size());
+        } catch (FileNotFoundException e) {
+            // Deleted by its owner or replayed by another process, or never renamed into place
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable journal " + journal, e);
+            return true;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+
+        if (buf.remaining() < 4 + 4 + 4 + 8) {
+            Log.w(TAG, "Discarding incomplete journal " + journal);
+            return true;
+        }
+        final int end = buf.limit() - 8;
+        final CRC32 crc = new CRC32();
+        final ByteBuffer body = buf.duplicate();
+        body.limit(end);
+        crc.update(body);
+        if (crc.getValue() != buf.getLong(end) || buf.getInt() != MAGIC
+                || buf.getInt() != VERSION) {
+            // The transaction did not commit, none of its files were touched
+            Log.w(TAG, "Discarding incomplete journal " + journal);
+            return true;
+        }
+        buf.limit(end);
+
+        try {
+            final int count = buf.getInt();
+            for (int i = 0; i < count; i++) {
+                final File file = new File(BinaryPrefsFormat.readString(buf));
+                final int mode = buf.getInt();
+                final long mtimeSec = buf.getLong();
+                final long mtimeNsec = buf.getLong();
+                final long size = buf.getLong();
+                final int length = buf.getInt();
+                final ByteBuffer contents = buf.slice();
+                contents.limit(length);
+                buf.position(buf.position() + length);
+
+                // Same recovery as SharedPreferencesImpl#loadFromDisk
+                final File backup = SharedPreferencesImpl.makeBackupFile(file);
+                if (backup.exists()) {
+                    file.delete();
+                    backup.renameTo(file);
+                }
+                StructStat stat = null;
+                try {
+                    stat = Os.stat(file.getPath());
+                } catch (ErrnoException e) {
+                    // Does not exist
+                }
+                final boolean unchanged = stat == null ? size == -1
+                        : stat.st_mtim.tv_sec == mtimeSec && stat.st_mtim.tv_nsec == mtimeNsec
+                                && stat.st_size == size;
+                if (unchanged) {
+                    Log.i(TAG, "Recovering " + file + " from " + journal);
+                    writeRecovered(file, mode, contents);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot replay journal " + journal, e);
+            return false;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Discarding corrupt journal " + journal, e);
+        }
+        return true;
+    }
+
+    /**
+     * Replace {@code file} with {@code contents}. Goes through a temporary file, so a file
+     * that is only partly recovered keeps looking like it did before the transaction.
+     */
+    private static void writeRecovered(File file, int mode, ByteBuffer contents)
+            throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            if (SharedPreferencesImpl.usesBinaryFormat()) {
+                out.getChannel().write(contents);
+            } else {
+                XmlUtils.writeMapXml(BinaryPrefsFormat.readMap(contents), out);
+            }
+            FileUtils.sync(out);
+            out.close();
+            out = null;
+            ContextImpl.setFilePermissionsFromMode(tmp.getPath(), mode, 0);
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Couldn't rename " + tmp + " to " + file);
+            }
+            // The rename must be durable before the journal is deleted
+            syncDirectory(file.getParentFile());
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        } finally {
+            IoUtils.closeQuietly(out);
+            tmp.delete();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}